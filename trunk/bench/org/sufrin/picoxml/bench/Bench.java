@@ -0,0 +1,351 @@
+package org.sufrin.picoxml.bench;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.*;
+import org.sufrin.picoxml.*;
+
+/**
+ * A benchmark harness for the scanner, the parser, and tree printing.
+ * Each benchmark is run on each generated corpus: after a warm-up period,
+ * operations are timed for a measurement period, and throughput (MB/s of
+ * UTF-8 input), time per document, and bytes allocated per document are reported.
+ * <pre>
+ *   java org.sufrin.picoxml.bench.Bench [-size bytes] [-warmup ms] [-time ms] [-runs n]
+ *                                       [benchmark|corpus ...]
+ * </pre>
+ * With no benchmark (or corpus) named, all of them are run.
+ */
+public class Bench
+{
+  /** A single timed operation: the result is folded into a sink so it cannot be optimized away */
+  interface Op
+  {
+    long run() throws Exception;
+  }
+
+  /** The benchmarks */
+  enum Benchmark
+  {
+    /** Scan from a Reader with a no-op handler */
+    SCAN_READER
+    {
+      Op prepare(final Fixture f)
+      {
+        final Counter     counter = new Counter();
+        final XMLScanner  scanner = new XMLScanner(counter);
+        return new Op()
+        {
+          public long run()
+          {
+            scanner.read(new StringReader(f.text));
+            return counter.events;
+          }
+        };
+      }
+    },
+
+    /** Scan UTF-8 bytes with a no-op handler */
+    SCAN_BYTES
+    {
+      Op prepare(final Fixture f)
+      {
+        final Counter     counter = new Counter();
+        final XMLScanner  scanner = new XMLScanner(counter);
+        return new Op()
+        {
+          public long run()
+          {
+            scanner.read(ByteBuffer.wrap(f.bytes));
+            return counter.events;
+          }
+        };
+      }
+    },
+
+    /** Scan UTF-8 bytes with a no-op handler, delivering transient text and reused attributes */
+    SCAN_TRANSIENT
+    {
+      Op prepare(final Fixture f)
+      {
+        final Counter     counter = new Counter();
+        final XMLScanner  scanner = new XMLScanner(counter);
+        scanner.setTransientText(true);
+        scanner.setReuseAttributes(true);
+        scanner.setInternValues(false);
+        return new Op()
+        {
+          public long run()
+          {
+            scanner.read(ByteBuffer.wrap(f.bytes));
+            return counter.events;
+          }
+        };
+      }
+    },
+
+    /** Scan UTF-8 bytes fed 64 at a time (as they might arrive from a socket) with a no-op handler: compare SCAN_BYTES */
+    SCAN_FED
+    {
+      Op prepare(final Fixture f)
+      {
+        final Counter     counter = new Counter();
+        final XMLScanner  scanner = new XMLScanner(counter);
+        return new Op()
+        {
+          public long run()
+          {
+            byte[] b = f.bytes;
+            scanner.openFeed();
+            for (int i = 0; i < b.length; i += 64) scanner.feed(b, i, Math.min(64, b.length - i));
+            scanner.endOfInput();
+            return counter.events;
+          }
+        };
+      }
+    },
+
+    /** Build an AppTree with an XMLParser */
+    PARSE
+    {
+      Op prepare(final Fixture f)
+      {
+        final XMLParser<AppTree> parser  = new XMLParser<AppTree>(new AppTreeFactory());
+        final XMLScanner         scanner = new XMLScanner(parser);
+        return new Op()
+        {
+          public long run()
+          {
+            scanner.read(new StringReader(f.text));
+            return parser.getTree().hashCode();
+          }
+        };
+      }
+    },
+
+    /** Pretty-print a previously-built AppTree */
+    PRINT
+    {
+      Op prepare(final Fixture f)
+      {
+        final AppTree     tree = f.tree();
+        final Sink        sink = new Sink();
+        final PrintWriter out  = new PrintWriter(sink);
+        return new Op()
+        {
+          public long run()
+          {
+            tree.printTo(out, 0);
+            out.flush();
+            return sink.chars;
+          }
+        };
+      }
+    },
+
+    /** Serialize a previously-built AppTree with an XMLWriter */
+    WRITE
+    {
+      Op prepare(final Fixture f)
+      {
+        final AppTree   tree   = f.tree();
+        final Sink      sink   = new Sink();
+        final XMLWriter writer = new XMLWriter(sink).setIndent(2);
+        return new Op()
+        {
+          public long run()
+          {
+            writer.startDocument();
+            writer.write(tree);
+            writer.endDocument();
+            return sink.chars;
+          }
+        };
+      }
+    },
+
+    /** Serialize a previously-built AppTree with an XMLWriter, as UTF-8 to a channel */
+    WRITE_UTF8
+    {
+      Op prepare(final Fixture f)
+      {
+        final AppTree     tree   = f.tree();
+        final ByteSink    sink   = new ByteSink();
+        final XMLWriter   writer = new XMLWriter(sink);
+        return new Op()
+        {
+          public long run()
+          {
+            writer.startDocument();
+            writer.write(tree);
+            writer.endDocument();
+            return sink.bytes;
+          }
+        };
+      }
+    };
+
+    abstract Op prepare(Fixture f);
+  }
+
+  /** A corpus document, in the forms the benchmarks need */
+  static class Fixture
+  {
+    final Corpus corpus;
+    final String text;
+    final byte[] bytes;
+    AppTree      tree;
+
+    Fixture(Corpus corpus, int size)
+    {
+      this.corpus = corpus;
+      this.text   = corpus.text(size);
+      this.bytes  = corpus.bytes(size);
+    }
+
+    AppTree tree()
+    {
+      if (tree == null)
+      {
+        XMLParser<AppTree> parser = new XMLParser<AppTree>(new AppTreeFactory());
+        new XMLScanner(parser).read(new StringReader(text));
+        tree = parser.getTree();
+      }
+      return tree;
+    }
+  }
+
+  /** An XMLHandler that does nothing but count events */
+  static class Counter implements XMLHandler
+  {
+    long events;
+
+    public void startElement(String kind, Map<String, String> atts) { events++; }
+    public void endElement(String kind)                             { events++; }
+    public void acceptComment(CharSequence text)                    { events++; }
+    public void acceptDTD(CharSequence text)                        { events++; }
+    public void acceptPI(CharSequence text)                         { events++; }
+    public void acceptPCDATA(CharSequence text, boolean cdata)      { events++; }
+    public void startDocument()                                     { events = 0; }
+    public void endDocument()                                       { }
+    public String decodeEntity(String entity)                       { return null; }
+  }
+
+  /** A Writer that discards (but counts) its output */
+  static class Sink extends Writer
+  {
+    long chars;
+
+    public void write(char[] b, int off, int len) { chars += len; }
+    public void write(int c)                      { chars++; }
+    public void write(String s, int off, int len) { chars += len; }
+    public void flush()                           { }
+    public void close()                           { }
+  }
+
+  /** A channel that discards (but counts) its output */
+  static class ByteSink implements java.nio.channels.WritableByteChannel
+  {
+    long bytes;
+
+    public int write(ByteBuffer b)   { int n = b.remaining(); b.position(b.limit()); bytes += n; return n; }
+    public boolean isOpen()          { return true; }
+    public void close()              { }
+  }
+
+  /** Defeats dead-code elimination */
+  static volatile long sink;
+
+  static final com.sun.management.ThreadMXBean threads = threadBean();
+
+  static com.sun.management.ThreadMXBean threadBean()
+  {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean)
+    {
+      com.sun.management.ThreadMXBean b = (com.sun.management.ThreadMXBean) bean;
+      if (b.isThreadAllocatedMemorySupported())
+      {
+        b.setThreadAllocatedMemoryEnabled(true);
+        return b;
+      }
+    }
+    return null;
+  }
+
+  static long allocated()
+  {
+    return threads == null ? -1 : threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  /** Run op repeatedly for at least the given time; return {operations, nanoseconds, bytes allocated} */
+  static long[] measure(Op op, long millis) throws Exception
+  {
+    long ops = 0, acc = 0;
+    long deadline = System.nanoTime() + millis * 1000000L;
+    long a0 = allocated(), t0 = System.nanoTime(), t1;
+    do
+    {
+      acc += op.run();
+      ops++;
+    }
+    while ((t1 = System.nanoTime()) < deadline);
+    long a1 = allocated();
+    sink += acc;
+    return new long[] { ops, t1 - t0, a0 < 0 ? -1 : a1 - a0 };
+  }
+
+  public static void main(String[] args) throws Exception
+  {
+    int  size   = 1 << 20;
+    long warmup = 2000, time = 3000;
+    int  runs   = 3;
+    Set<Benchmark> benchmarks = EnumSet.noneOf(Benchmark.class);
+    Set<Corpus>    corpora    = EnumSet.noneOf(Corpus.class);
+    for (int i = 0; i < args.length; i++)
+    {
+      String arg = args[i];
+      if (arg.equals("-size"))        size   = Integer.parseInt(args[++i]);
+      else if (arg.equals("-warmup")) warmup = Long.parseLong(args[++i]);
+      else if (arg.equals("-time"))   time   = Long.parseLong(args[++i]);
+      else if (arg.equals("-runs"))   runs   = Integer.parseInt(args[++i]);
+      else
+      {
+        String name = arg.toUpperCase();
+        try
+        {
+          benchmarks.add(Benchmark.valueOf(name));
+        }
+        catch (IllegalArgumentException ex)
+        {
+          corpora.add(Corpus.valueOf(name));
+        }
+      }
+    }
+    if (benchmarks.isEmpty()) benchmarks = EnumSet.allOf(Benchmark.class);
+    if (corpora.isEmpty())    corpora    = EnumSet.allOf(Corpus.class);
+
+    System.out.printf("%-16s %-11s %10s %12s %14s%n", "benchmark", "corpus", "MB/s", "ms/doc", "alloc/doc");
+    for (Corpus corpus : corpora)
+    {
+      Fixture f = new Fixture(corpus, size);
+      for (Benchmark benchmark : benchmarks)
+      {
+        Op op = benchmark.prepare(f);
+        measure(op, warmup);
+        long ops = 0, nanos = 0, bytes = 0;
+        for (int r = 0; r < runs; r++)
+        {
+          long[] m = measure(op, time / runs);
+          ops   += m[0];
+          nanos += m[1];
+          bytes  = bytes < 0 || m[2] < 0 ? -1 : bytes + m[2];
+        }
+        double secsPerOp = nanos / 1e9 / ops;
+        System.out.printf("%-16s %-11s %10.1f %12.3f %14d%n",
+                          benchmark, corpus, f.bytes.length / 1e6 / secsPerOp, secsPerOp * 1e3, bytes < 0 ? -1 : bytes / ops);
+      }
+    }
+  }
+}
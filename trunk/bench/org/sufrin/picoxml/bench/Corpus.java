@@ -0,0 +1,167 @@
+package org.sufrin.picoxml.bench;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Generated benchmark documents, each of (roughly) a requested size,
+ * and each stressing a different part of the scanner and parser.
+ * Generation is deterministic, so that runs are comparable.
+ */
+public enum Corpus
+{
+  /** Elements nested hundreds deep */
+  DEEP
+  {
+    void generate(StringBuilder b, Random r, int size)
+    {
+      b.append("<root>\n");
+      while (b.length() < size)
+      {
+        int depth = 50 + r.nextInt(200);
+        for (int i = 0; i < depth; i++) b.append("<level").append(i % 7).append('>');
+        b.append("leaf ").append(r.nextInt(1000));
+        for (int i = depth - 1; i >= 0; i--) b.append("</level").append(i % 7).append('>');
+        b.append('\n');
+      }
+      b.append("</root>\n");
+    }
+  },
+
+  /** A long flat list of small elements */
+  WIDE
+  {
+    void generate(StringBuilder b, Random r, int size)
+    {
+      b.append("<list>\n");
+      for (int i = 0; b.length() < size; i++)
+        b.append("  <entry>").append(i).append("</entry>\n");
+      b.append("</list>\n");
+    }
+  },
+
+  /** Elements with 5-20 attributes each */
+  ATTRIBUTES
+  {
+    void generate(StringBuilder b, Random r, int size)
+    {
+      b.append("<catalog>\n");
+      for (int i = 0; b.length() < size; i++)
+      {
+        b.append("  <item");
+        int n = 5 + r.nextInt(16);
+        for (int a = 0; a < n; a++)
+          b.append(' ').append(ATTS[a]).append("=\"").append(WORDS[r.nextInt(WORDS.length)]).append(i % 100).append('"');
+        b.append("/>\n");
+      }
+      b.append("</catalog>\n");
+    }
+  },
+
+  /** Paragraphs of running text */
+  TEXT
+  {
+    void generate(StringBuilder b, Random r, int size)
+    {
+      b.append("<book>\n");
+      while (b.length() < size)
+      {
+        b.append("  <para>");
+        int n = 50 + r.nextInt(200);
+        for (int w = 0; w < n; w++)
+        {
+          b.append(WORDS[r.nextInt(WORDS.length)]);
+          b.append(w % 17 == 16 ? "\n    " : " ");
+        }
+        b.append("</para>\n");
+      }
+      b.append("</book>\n");
+    }
+  },
+
+  /** Text thick with character and entity references */
+  ENTITIES
+  {
+    void generate(StringBuilder b, Random r, int size)
+    {
+      b.append("<feed>\n");
+      while (b.length() < size)
+      {
+        b.append("  <p title=\"Tom &amp; Jerry&#8217;s\">");
+        int n = 20 + r.nextInt(40);
+        for (int w = 0; w < n; w++)
+        {
+          b.append(WORDS[r.nextInt(WORDS.length)]);
+          b.append(ENTS[r.nextInt(ENTS.length)]);
+        }
+        b.append("</p>\n");
+      }
+      b.append("</feed>\n");
+    }
+  },
+
+  /** Escaped markup, as a message carries a document: one long attribute value and one text node, most of them entities */
+  ESCAPED
+  {
+    void generate(StringBuilder b, Random r, int size)
+    {
+      b.append("<envelope>\n  <header note=\"");
+      for (int i = 0; b.length() < size / 8; i++)
+        b.append("&lt;ref n=&quot;").append(i).append("&quot;/&gt;").append(ENTS[r.nextInt(ENTS.length)]);
+      b.append("\"/>\n  <body>");
+      for (int i = 0; b.length() < size; i++)
+      {
+        b.append("&lt;item id=&quot;").append(i).append("&quot;&gt;").append(WORDS[r.nextInt(WORDS.length)]);
+        b.append(ENTS[r.nextInt(ENTS.length)]).append("&lt;/item&gt;");
+        if (i % 8 == 7) b.append('\n');
+      }
+      b.append("</body>\n</envelope>\n");
+    }
+  },
+
+  /** Large CDATA sections and comments */
+  CDATA
+  {
+    void generate(StringBuilder b, Random r, int size)
+    {
+      b.append("<payloads>\n");
+      while (b.length() < size)
+      {
+        b.append("  <!-- payload follows: ");
+        for (int i = 0, n = r.nextInt(50); i < n; i++) b.append(WORDS[r.nextInt(WORDS.length)]).append(' ');
+        b.append("-->\n  <data><![CDATA[");
+        for (int i = 0, n = 500 + r.nextInt(4000); i < n; i++)
+        {
+          b.append(BASE64.charAt(r.nextInt(BASE64.length())));
+          if (i % 76 == 75) b.append('\n');
+        }
+        b.append("]]></data>\n");
+      }
+      b.append("</payloads>\n");
+    }
+  };
+
+  abstract void generate(StringBuilder b, Random r, int size);
+
+  /** A document of about the given size (in characters) */
+  public String text(int size)
+  {
+    StringBuilder b = new StringBuilder(size + 1024);
+    b.append("<?xml version=\"1.0\"?>\n");
+    generate(b, new Random(size * 31 + ordinal()), size);
+    return b.toString();
+  }
+
+  /** A document of about the given size, encoded as UTF-8 */
+  public byte[] bytes(int size)
+  {
+    return text(size).getBytes(StandardCharsets.UTF_8);
+  }
+
+  static final String[] WORDS  = { "the", "quick", "brown", "fox", "jumps", "over", "lazy", "dog", "caf\u00e9", "na\u00efve",
+                                   "lorem", "ipsum", "dolor", "sit", "amet", "x1", "config", "value", "catalog", "item" };
+  static final String[] ATTS   = { "id", "name", "type", "ref", "lang", "class", "href", "title", "key", "unit",
+                                   "price", "currency", "date", "status", "owner", "group", "rank", "scale", "min", "max" };
+  static final String[] ENTS   = { " ", "&amp;", "&lt;", "&gt;", "&nbsp;", "&#8217;", "&quot;", " &apos;", "&#233; " };
+  static final String   BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+}
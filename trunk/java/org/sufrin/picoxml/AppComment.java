@@ -12,8 +12,7 @@ public class AppComment extends AppText
 
   public void printTo(PrintWriter out, int indent)
   {
-    for (int i = 0; i < indent; i++)
-      out.print(" ");
+    XMLWriter.indent(out, indent);
     out.print("<!--");
     out.print(text);
     out.print("-->");
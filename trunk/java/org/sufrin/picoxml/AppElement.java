@@ -13,6 +13,21 @@ public class AppElement implements AppTree, Composite<AppTree>, Iterable<AppTree
   protected Map<String, String> attrs;
   /** Subtrees in order of accession. */
   protected Vector<AppTree> subtrees = new Vector<AppTree>();
+
+  /** Elements with more subtrees than this are indexed when their children are first looked up */
+  protected static final int INDEX_THRESHOLD = 8;
+
+  /** 
+   * Positions (in subtrees) of the child elements of each kind: built when 
+   * first needed, and discarded when a subtree is added.
+   */
+  protected volatile Map<String, int[]> kindIndex;
+
+  /**
+   * For each attribute by which children have been looked up: the first child with each 
+   * value of the attribute. Built when first needed, and discarded when a subtree is added.
+   */
+  protected volatile Map<String, Map<String, AppElement>> attributeIndex;
   
   /** Signal (usually from a parser) that no more subtrees will be added. */
   public AppTree close()
@@ -31,6 +46,8 @@ public class AppElement implements AppTree, Composite<AppTree>, Iterable<AppTree
   public void addTree(AppTree t)
   {
     subtrees.add(t);
+    if (kindIndex != null)      kindIndex = null;
+    if (attributeIndex != null) attributeIndex = null;
   }
   
   /** Get the full name of the element */
@@ -39,6 +56,110 @@ public class AppElement implements AppTree, Composite<AppTree>, Iterable<AppTree
     return kind;
   }
   
+  /** The value of the named attribute; or null */
+  public String getAttribute(String name)
+  {
+    return attrs == null ? null : attrs.get(name);
+  }
+
+  /** The attributes of the element */
+  public Map<String, String> getAttributes()
+  {
+    return attrs == null ? Collections.<String, String>emptyMap() : attrs;
+  }
+
+  /** 
+   * The first child element of the given kind; or null. Lookups in an element
+   * with many subtrees use an index of its children, built by the first lookup.
+   * (As with the other lookups, this must not be done while subtrees are being added.)
+   */
+  public AppElement getChild(String kind)
+  {
+    if (subtrees.size() <= INDEX_THRESHOLD)
+    {
+      for (AppTree t : subtrees)
+        if (t instanceof AppElement && ((AppElement) t).kind.equals(kind)) return (AppElement) t;
+      return null;
+    }
+    int[] positions = kindIndex().get(kind);
+    return positions == null ? null : (AppElement) subtrees.get(positions[0]);
+  }
+
+  /** The child elements of the given kind, in order */
+  public List<AppElement> getChildren(String kind)
+  {
+    List<AppElement> children = new ArrayList<AppElement>();
+    if (subtrees.size() <= INDEX_THRESHOLD)
+    {
+      for (AppTree t : subtrees)
+        if (t instanceof AppElement && ((AppElement) t).kind.equals(kind)) children.add((AppElement) t);
+    }
+    else
+    {
+      int[] positions = kindIndex().get(kind);
+      if (positions != null)
+        for (int p : positions) children.add((AppElement) subtrees.get(p));
+    }
+    return children;
+  }
+
+  /** The first child element whose named attribute has the given value; or null */
+  public AppElement getChild(String attribute, String value)
+  {
+    if (subtrees.size() <= INDEX_THRESHOLD)
+    {
+      for (AppTree t : subtrees)
+        if (t instanceof AppElement && value.equals(((AppElement) t).getAttribute(attribute))) return (AppElement) t;
+      return null;
+    }
+    Map<String, Map<String, AppElement>> indexes = attributeIndex;
+    Map<String, AppElement>              index   = indexes == null ? null : indexes.get(attribute);
+    if (index == null)
+    {
+      index = new HashMap<String, AppElement>();
+      for (AppTree t : subtrees)
+        if (t instanceof AppElement)
+        { String v = ((AppElement) t).getAttribute(attribute);
+          if (v != null) index.putIfAbsent(v, (AppElement) t);
+        }
+      // Copied, so that a reader never sees a map being changed
+      indexes = indexes == null ? new HashMap<String, Map<String, AppElement>>() : new HashMap<String, Map<String, AppElement>>(indexes);
+      indexes.put(attribute, index);
+      attributeIndex = indexes;
+    }
+    return index.get(value);
+  }
+
+  /** The index of child elements by kind, built if necessary */
+  protected Map<String, int[]> kindIndex()
+  {
+    Map<String, int[]> index = kindIndex;
+    if (index == null)
+    {
+      Map<String, int[]> counts = new HashMap<String, int[]>();
+      for (AppTree t : subtrees)
+        if (t instanceof AppElement)
+        { int[] count = counts.get(((AppElement) t).kind);
+          if (count == null) counts.put(((AppElement) t).kind, count = new int[1]);
+          count[0]++;
+        }
+      index = new HashMap<String, int[]>(2 * counts.size());
+      for (Map.Entry<String, int[]> e : counts.entrySet())
+      { index.put(e.getKey(), new int[e.getValue()[0]]);
+        e.getValue()[0] = 0;
+      }
+      for (int i = 0; i < subtrees.size(); i++)
+      { AppTree t = subtrees.get(i);
+        if (t instanceof AppElement)
+        { String kind = ((AppElement) t).kind;
+          index.get(kind)[counts.get(kind)[0]++] = i;
+        }
+      }
+      kindIndex = index;
+    }
+    return index;
+  }
+
   /** Iterate over the subtrees */
   public Iterator<AppTree> iterator()
   {
@@ -53,13 +174,15 @@ public class AppElement implements AppTree, Composite<AppTree>, Iterable<AppTree
   }
 
   public void printTo(PrintWriter out, int indent)
-  { for (int i = 0; i < indent; i++)
-      out.print(" ");          // Indent to open bracket position
+  { XMLWriter.indent(out, indent);  // Indent to open bracket position
+    out.print('<');
+    out.print(kind);
+    printAttributes(out);
     if (subtrees.size() == 0)  // Can we abbreviate the tree?
-      out.print(String.format("<%s%s/>", kind, attrs));
+      out.print("/>");
     else
     {
-      out.print(String.format("<%s%s>", kind, attrs));
+      out.print('>');
       boolean wasWord = false; // Last printed tree was a Word
       for (AppTree t : subtrees)
       {
@@ -67,13 +190,31 @@ public class AppElement implements AppTree, Composite<AppTree>, Iterable<AppTree
         boolean needNL = !wasWord || !isWord;
         if (needNL)
           out.println();
-        t.printTo(out, needNL ? indent + 2 : 1);
+        // Words are separated by a space; runs of text carry their own white space
+        t.printTo(out, needNL ? indent + 2 : ((AppPCData) t).run ? 0 : 1);
         wasWord = isWord;
       }
       out.println();
-      for (int i = 0; i < indent; i++)
-        out.print(" "); // Align close bracket with open bracket
-      out.print(String.format("</%s>", kind));
+      XMLWriter.indent(out, indent); // Align close bracket with open bracket
+      out.print("</");
+      out.print(kind);
+      out.print('>');
     }
   }
+  
+  /** Print the attributes as they appear in a start tag (any other Map as its toString()) */
+  protected void printAttributes(PrintWriter out)
+  { if (attrs instanceof XMLScanner.Attributes)
+    { XMLScanner.Attributes atts = (XMLScanner.Attributes) attrs;
+      for (int i = 0; i < atts.size(); i++)
+      { out.print(' ');
+        out.print(atts.name(i));
+        out.print("='");
+        out.print(XMLScanner.unQuote(atts.value(i)));
+        out.print('\'');
+      }
+    }
+    else
+      out.print(attrs);
+  }
 }
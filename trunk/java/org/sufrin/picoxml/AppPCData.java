@@ -5,6 +5,8 @@ import java.io.PrintWriter;
 public class AppPCData extends AppText
 { /** Was the text derived from a CDATA section */
   boolean cdata = false;
+  /** Is the text a whole run of text (with its white space), rather than a word */
+  boolean run = false;
 
   public AppPCData(String text, boolean cdata)
   {
@@ -12,10 +14,20 @@ public class AppPCData extends AppText
     this.cdata=cdata;
   }
 
+  public AppPCData(String text, boolean cdata, boolean run)
+  {
+    this(text, cdata);
+    this.run=run;
+  }
+
+  public boolean isRun()
+  {
+    return run;
+  }
+
   public void printTo(PrintWriter out, int indent)
   {
-    for (int i = 0; i < indent; i++)
-      out.print(" ");
+    XMLWriter.indent(out, indent);
     if (cdata) out.print("<![CDATA[");
     out.print(text);
     if (cdata) out.print("]]>");
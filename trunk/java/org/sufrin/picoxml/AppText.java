@@ -16,8 +16,7 @@ public class AppText implements AppTree
   
   public void printTo(PrintWriter out, int indent)
   {
-    for (int i = 0; i < indent; i++)
-      out.print(" ");
+    XMLWriter.indent(out, indent);
     out.print(text);
   }
 
@@ -5,6 +5,20 @@ import java.util.*;
 
 public class AppTreeFactory implements XMLTreeFactory<AppTree>
 {
+  /** PCDATA are whole runs of text, as delivered by a scanner whose TextMode is not WORDS */
+  protected final boolean textRuns;
+
+  public AppTreeFactory()
+  {
+    this(false);
+  }
+
+  /** A factory whose PCDATA are (if textRuns) whole runs of text, that are printed without separating spaces */
+  public AppTreeFactory(boolean textRuns)
+  {
+    this.textRuns = textRuns;
+  }
+
   public AppElement newElement(String kind, Map<String, String> atts)
   {
     return new AppElement(kind, atts);
@@ -17,7 +31,7 @@ public class AppTreeFactory implements XMLTreeFactory<AppTree>
 
   public AppText newPCData(String name, boolean cdata)
   {
-    return new AppPCData(name, cdata);
+    return new AppPCData(name, cdata, textRuns);
   }
 
   public AppText newComment(String data)
@@ -0,0 +1,60 @@
+package org.sufrin.picoxml;
+
+/**
+ * A CharSearch finds delimiters (and counts newlines) in blocks of an
+ * XMLScanner's window: it is what the scanner uses to pass over long runs of text, 
+ * comments, CDATA sections and attribute values. This one examines a character at a time;
+ * but the scanners' search (<tt>CharSearch.search</tt>) is a VectorCharSearch, which examines many 
+ * characters at a time, if it has been compiled (by <tt>ant vector</tt>) and the incubating Vector API 
+ * is available -- if the JVM was started with <tt>--add-modules jdk.incubator.vector</tt> -- unless the 
+ * system property <tt>picoxml.vector</tt> is <tt>false</tt>.
+ */
+class CharSearch
+{
+  /** The search used by scanners */
+  static final CharSearch search = choose();
+
+  static CharSearch choose()
+  {
+    if (Boolean.parseBoolean(System.getProperty("picoxml.vector", "true")) && ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent())
+      try
+      {
+        return (CharSearch) Class.forName("org.sufrin.picoxml.VectorCharSearch").getDeclaredConstructor().newInstance();
+      }
+      catch (Throwable ex)
+      { // The vector search is not usable here
+      }
+    return new CharSearch();
+  }
+
+  /** The position of the first c in b[from..to); or to, if there is none */
+  int indexOf(char[] b, int from, int to, char c)
+  {
+    int i = from;
+    while (i < to && b[i] != c) i++;
+    return i;
+  }
+
+  /** The position of the first c1 or c2 in b[from..to); or to, if there is none */
+  int indexOf(char[] b, int from, int to, char c1, char c2)
+  {
+    int  i = from;
+    char c;
+    while (i < to && (c = b[i]) != c1 && c != c2) i++;
+    return i;
+  }
+
+  /** The number of occurrences of c in b[from..to) */
+  int count(char[] b, int from, int to, char c)
+  {
+    int n = 0;
+    for (int i = from; i < to; i++)
+      if (b[i] == c) n++;
+    return n;
+  }
+
+  public String toString()
+  {
+    return "scalar";
+  }
+}
@@ -0,0 +1,438 @@
+package org.sufrin.picoxml;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.*;
+
+/**
+ * A CompactDocument represents an XML document as a table of nodes,
+ * numbered from 0 (the root) in document order, whose properties are held in
+ * a few primitive arrays rather than in an object per node. All text
+ * (PCDATA, comments, PIs, DTDs, and attribute values) is held in a single
+ * char array, and each distinct element or attribute name is held once in a name table.
+ * <p>
+ * Nodes are navigated by number: <tt>firstChild</tt>, <tt>nextSibling</tt> and
+ * <tt>parent</tt> yield -1 where there is no such node. A CompactDocument
+ * is built by a CompactTreeFactory, and does not change afterwards.
+ */
+public class CompactDocument
+{
+  /** Node types */
+  public static final byte ROOT = 0, ELEMENT = 1, PCDATA = 2, CDATA = 3, COMMENT = 4, PI = 5, DTD = 6;
+
+  /** Properties of node n: for an element, start[n] and length[n] locate its attributes;
+   *  for other nodes (except the root) its text. */
+  protected byte[] type;
+  protected int[]  name, parent, firstChild, nextSibling, start, length;
+  protected int    nodes;
+
+  /** Properties of attribute a: its name, and the location of its value */
+  protected int[]  attName, attStart, attLength;
+  protected int    atts;
+
+  /** The text of the document */
+  protected char[] chars;
+  protected int    charCount;
+
+  /** Distinct names, and their positions in <tt>names</tt> */
+  protected String[]              names;
+  protected int                   nameCount;
+  protected Map<String, Integer>  nameIndex = new HashMap<String, Integer>();
+
+  public CompactDocument()
+  {
+    this(256, 64, 4096);
+  }
+
+  /** A document with room (initially) for the given number of nodes, attributes, and characters */
+  public CompactDocument(int nodeCapacity, int attCapacity, int charCapacity)
+  {
+    nodeCapacity = Math.max(1, nodeCapacity);
+    type        = new byte[nodeCapacity];
+    name        = new int[nodeCapacity];
+    parent      = new int[nodeCapacity];
+    firstChild  = new int[nodeCapacity];
+    nextSibling = new int[nodeCapacity];
+    start       = new int[nodeCapacity];
+    length      = new int[nodeCapacity];
+    attCapacity = Math.max(1, attCapacity);
+    attName     = new int[attCapacity];
+    attStart    = new int[attCapacity];
+    attLength   = new int[attCapacity];
+    chars       = new char[Math.max(1, charCapacity)];
+    names       = new String[16];
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  //
+  //                     Navigation
+  //
+  ////////////////////////////////////////////////////////////////////////
+
+  /** The root node */
+  public int root()
+  {
+    return 0;
+  }
+
+  /** Number of nodes */
+  public int size()
+  {
+    return nodes;
+  }
+
+  /** Type of node n: one of ROOT, ELEMENT, PCDATA, CDATA, COMMENT, PI, DTD */
+  public byte type(int n)
+  {
+    check(n);
+    return type[n];
+  }
+
+  /** Is node n an element */
+  public boolean isElement(int n)
+  {
+    return type(n) == ELEMENT;
+  }
+
+  /** Name of node n if it is an element; otherwise null */
+  public String name(int n)
+  {
+    check(n);
+    return type[n] == ELEMENT ? names[name[n]] : null;
+  }
+
+  public int parent(int n)
+  {
+    check(n);
+    return parent[n];
+  }
+
+  public int firstChild(int n)
+  {
+    check(n);
+    return firstChild[n];
+  }
+
+  public int nextSibling(int n)
+  {
+    check(n);
+    return nextSibling[n];
+  }
+
+  /** The first child element of n with the given name (any name, if null); or -1 */
+  public int firstElement(int n, String aName)
+  {
+    return element(firstChild(n), aName);
+  }
+
+  /** The next sibling element of n with the given name (any name, if null); or -1 */
+  public int nextElement(int n, String aName)
+  {
+    return element(nextSibling(n), aName);
+  }
+
+  protected int element(int n, String aName)
+  {
+    for (; n >= 0; n = nextSibling[n])
+      if (type[n] == ELEMENT && (aName == null || names[name[n]].equals(aName))) return n;
+    return -1;
+  }
+
+  /** Text of node n, if it is not an element; otherwise null */
+  public String text(int n)
+  {
+    check(n);
+    return type[n] <= ELEMENT ? null : new String(chars, start[n], length[n]);
+  }
+
+  /** Append the text of node n, if it is not an element, to b */
+  public StringBuilder appendText(int n, StringBuilder b)
+  {
+    check(n);
+    if (type[n] > ELEMENT) b.append(chars, start[n], length[n]);
+    return b;
+  }
+
+  /** Number of attributes of node n */
+  public int attributeCount(int n)
+  {
+    check(n);
+    return type[n] == ELEMENT ? length[n] : 0;
+  }
+
+  /** Name of the i'th attribute of node n */
+  public String attributeName(int n, int i)
+  {
+    return names[attName[attribute(n, i)]];
+  }
+
+  /** Value of the i'th attribute of node n */
+  public String attributeValue(int n, int i)
+  {
+    int a = attribute(n, i);
+    return new String(chars, attStart[a], attLength[a]);
+  }
+
+  /** Value of the named attribute of node n; or null */
+  public String attribute(int n, String aName)
+  {
+    Integer index = nameIndex.get(aName);
+    if (index == null) return null;
+    for (int i = 0, count = attributeCount(n); i < count; i++)
+    {
+      int a = start[n] + i;
+      if (attName[a] == index) return new String(chars, attStart[a], attLength[a]);
+    }
+    return null;
+  }
+
+  protected int attribute(int n, int i)
+  {
+    if (i < 0 || i >= attributeCount(n)) throw new IndexOutOfBoundsException("" + i);
+    return start[n] + i;
+  }
+
+  protected void check(int n)
+  {
+    if (n < 0 || n >= nodes) throw new IndexOutOfBoundsException("No node " + n);
+  }
+
+  /** Build an AppTree from the subtree at node n (the root yields an element whose kind is "") */
+  public AppTree toAppTree(int n)
+  {
+    switch (type(n))
+    {
+      case ROOT:
+      case ELEMENT:
+      {
+        Map<String, String> map = null;
+        if (type[n] == ELEMENT)
+        {
+          XMLScanner.Attributes atts = new XMLScanner.Attributes(length[n]);
+          for (int i = 0; i < length[n]; i++)
+            atts.put(attributeName(n, i), attributeValue(n, i));
+          map = atts;
+        }
+        AppElement element = new AppElement(type[n] == ROOT ? "" : names[name[n]], map);
+        for (int c = firstChild[n]; c >= 0; c = nextSibling[c])
+          element.addTree(toAppTree(c));
+        return element;
+      }
+      case PCDATA:
+        return new AppPCData(text(n), false);
+      case CDATA:
+        return new AppPCData(text(n), true);
+      case COMMENT:
+        return new AppComment(text(n));
+      case PI:
+        return new AppPI(text(n));
+      default:
+        return new AppText(text(n));
+    }
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  //
+  //                     Printing (as AppTree.printTo)
+  //
+  ////////////////////////////////////////////////////////////////////////
+
+  public String toString()
+  {
+    StringWriter w   = new StringWriter();
+    PrintWriter  out = new PrintWriter(w);
+    if (nodes > 0) printTo(out, 0, 0);
+    out.flush();
+    return w.toString();
+  }
+
+  /** Print the subtree at node n in the same form as the corresponding AppTree */
+  public void printTo(PrintWriter out, int n, int indent)
+  {
+    check(n);
+    for (int i = 0; i < indent; i++)
+      out.print(' ');
+    switch (type[n])
+    {
+      case ROOT:
+      case ELEMENT:
+      {
+        String kind = type[n] == ROOT ? "" : names[name[n]];
+        out.print('<');
+        out.print(kind);
+        if (type[n] == ELEMENT)
+          for (int i = 0; i < length[n]; i++)
+          {
+            out.print(' ');
+            out.print(attributeName(n, i));
+            out.print("='");
+            out.print(XMLScanner.unQuote(attributeValue(n, i)));
+            out.print('\'');
+          }
+        else
+          out.print("null");
+        if (firstChild[n] < 0)
+          out.print("/>");
+        else
+        {
+          out.print('>');
+          boolean wasWord = false;
+          for (int c = firstChild[n]; c >= 0; c = nextSibling[c])
+          {
+            boolean isWord = type[c] == PCDATA || type[c] == CDATA;
+            boolean needNL = !wasWord || !isWord;
+            if (needNL) out.println();
+            printTo(out, c, needNL ? indent + 2 : 1);
+            wasWord = isWord;
+          }
+          out.println();
+          for (int i = 0; i < indent; i++)
+            out.print(' ');
+          out.print("</");
+          out.print(kind);
+          out.print('>');
+        }
+      }
+      break;
+      case PCDATA:
+        out.write(chars, start[n], length[n]);
+      break;
+      case CDATA:
+        out.print("<![CDATA[");
+        out.write(chars, start[n], length[n]);
+        out.print("]]>");
+      break;
+      case COMMENT:
+        out.print("<!--");
+        out.write(chars, start[n], length[n]);
+        out.print("-->");
+      break;
+      case PI:
+        out.print("<? ");
+        out.write(chars, start[n], length[n]);
+        out.print(" ?>");
+      break;
+      default:
+        out.write(chars, start[n], length[n]);
+    }
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  //
+  //                     Construction (by CompactTreeFactory)
+  //
+  ////////////////////////////////////////////////////////////////////////
+
+  /** Add an unlinked node */
+  protected int newNode(byte aType, int aName, int aStart, int aLength)
+  {
+    if (nodes == type.length)
+    {
+      int capacity = 2 * nodes;
+      type        = Arrays.copyOf(type, capacity);
+      name        = Arrays.copyOf(name, capacity);
+      parent      = Arrays.copyOf(parent, capacity);
+      firstChild  = Arrays.copyOf(firstChild, capacity);
+      nextSibling = Arrays.copyOf(nextSibling, capacity);
+      start       = Arrays.copyOf(start, capacity);
+      length      = Arrays.copyOf(length, capacity);
+    }
+    int n = nodes++;
+    type[n]        = aType;
+    name[n]        = aName;
+    parent[n]      = firstChild[n] = nextSibling[n] = -1;
+    start[n]       = aStart;
+    length[n]      = aLength;
+    return n;
+  }
+
+  protected int newRoot()
+  {
+    return newNode(ROOT, -1, 0, 0);
+  }
+
+  protected int newElement(String kind, Map<String, String> map)
+  {
+    int first = atts;
+    if (map != null)
+    {
+      if (map instanceof XMLScanner.Attributes)
+      {
+        XMLScanner.Attributes attributes = (XMLScanner.Attributes) map;
+        for (int i = 0; i < attributes.size(); i++)
+          newAttribute(attributes.name(i), attributes.value(i));
+      }
+      else
+        for (Map.Entry<String, String> entry : map.entrySet())
+          newAttribute(entry.getKey(), entry.getValue());
+    }
+    return newNode(ELEMENT, nameOf(kind), first, atts - first);
+  }
+
+  protected int newText(byte aType, String text)
+  {
+    return newNode(aType, -1, addChars(text), text.length());
+  }
+
+  protected void newAttribute(String aName, String value)
+  {
+    if (atts == attName.length)
+    {
+      int capacity = 2 * atts;
+      attName   = Arrays.copyOf(attName, capacity);
+      attStart  = Arrays.copyOf(attStart, capacity);
+      attLength = Arrays.copyOf(attLength, capacity);
+    }
+    attName[atts]   = nameOf(aName);
+    attStart[atts]  = addChars(value);
+    attLength[atts] = value.length();
+    atts++;
+  }
+
+  /** Make child the next child of p, whose last child (so far) is last */
+  protected void link(int p, int last, int child)
+  {
+    parent[child] = p;
+    if (last < 0)
+      firstChild[p] = child;
+    else
+      nextSibling[last] = child;
+  }
+
+  protected int addChars(String text)
+  {
+    int len = text.length(), at = charCount;
+    if (charCount + len > chars.length)
+      chars = Arrays.copyOf(chars, Math.max(2 * chars.length, charCount + len));
+    text.getChars(0, len, chars, charCount);
+    charCount += len;
+    return at;
+  }
+
+  protected int nameOf(String aName)
+  {
+    Integer index = nameIndex.get(aName);
+    if (index != null) return index;
+    if (nameCount == names.length) names = Arrays.copyOf(names, 2 * nameCount);
+    names[nameCount] = aName;
+    nameIndex.put(aName, nameCount);
+    return nameCount++;
+  }
+
+  /** Release the unused capacity of the arrays */
+  protected void trim()
+  {
+    type        = Arrays.copyOf(type, nodes);
+    name        = Arrays.copyOf(name, nodes);
+    parent      = Arrays.copyOf(parent, nodes);
+    firstChild  = Arrays.copyOf(firstChild, nodes);
+    nextSibling = Arrays.copyOf(nextSibling, nodes);
+    start       = Arrays.copyOf(start, nodes);
+    length      = Arrays.copyOf(length, nodes);
+    attName     = Arrays.copyOf(attName, atts);
+    attStart    = Arrays.copyOf(attStart, atts);
+    attLength   = Arrays.copyOf(attLength, atts);
+    chars       = Arrays.copyOf(chars, charCount);
+    names       = Arrays.copyOf(names, nameCount);
+  }
+}
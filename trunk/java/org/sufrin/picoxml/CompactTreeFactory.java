@@ -0,0 +1,120 @@
+package org.sufrin.picoxml;
+
+import java.util.*;
+
+/**
+ * A CompactTreeFactory records each document parsed with it as a
+ * CompactDocument; the "trees" it yields are node numbers within that document.
+ * After a document has been parsed it is available from <tt>getDocument()</tt>.
+ * <p>
+ * Elements are necessarily opened and closed in nested order, so a single Composite
+ * serves for every open element: the factory keeps its own stack of open nodes.
+ * A CompactTreeFactory builds one document at a time, so (unlike
+ * AppTreeFactory) it must not be shared by parsers working concurrently.
+ */
+public class CompactTreeFactory implements XMLTreeFactory<Integer>
+{
+  protected CompactDocument document;
+  /** The open nodes, and the last child (so far) of each of them */
+  protected int[] open = new int[32], last = new int[32];
+  protected int   depth;
+
+  protected final int nodeCapacity, attCapacity, charCapacity;
+
+  public CompactTreeFactory()
+  {
+    this(256, 64, 4096);
+  }
+
+  /** Each document starts with room for the given number of nodes, attributes, and characters */
+  public CompactTreeFactory(int nodeCapacity, int attCapacity, int charCapacity)
+  {
+    this.nodeCapacity = nodeCapacity;
+    this.attCapacity  = attCapacity;
+    this.charCapacity = charCapacity;
+  }
+
+  /** The document most recently started */
+  public CompactDocument getDocument()
+  {
+    return document;
+  }
+
+  /** The Composite for whichever element is innermost */
+  protected final Composite<Integer> composite = new Composite<Integer>()
+  {
+    public void addTree(Integer child)
+    {
+      int top = depth - 1;
+      document.link(open[top], last[top], child);
+      last[top] = child;
+    }
+
+    public Integer close()
+    {
+      int node = open[--depth];
+      if (depth == 0) document.trim();
+      return node;
+    }
+  };
+
+  protected Composite<Integer> push(int node)
+  {
+    if (depth == open.length)
+    {
+      open = Arrays.copyOf(open, 2 * depth);
+      last = Arrays.copyOf(last, 2 * depth);
+    }
+    open[depth] = node;
+    last[depth] = -1;
+    depth++;
+    return composite;
+  }
+
+  public Composite<Integer> newRoot()
+  {
+    document = new CompactDocument(nodeCapacity, attCapacity, charCapacity);
+    depth = 0;
+    return push(document.newRoot());
+  }
+
+  public Composite<Integer> newElement(String kind, Map<String, String> atts)
+  {
+    return push(document.newElement(kind, atts));
+  }
+
+  public Integer newPCData(String text, boolean cdata)
+  {
+    return document.newText(cdata ? CompactDocument.CDATA : CompactDocument.PCDATA, text);
+  }
+
+  public Integer newComment(String text)
+  {
+    return document.newText(CompactDocument.COMMENT, text);
+  }
+
+  public Integer newPI(String text)
+  {
+    return document.newText(CompactDocument.PI, text);
+  }
+
+  public Integer newDTD(String text)
+  {
+    return document.newText(CompactDocument.DTD, text);
+  }
+
+  public boolean canComment()
+  {
+    return true;
+  }
+
+  public boolean canPI()
+  {
+    return true;
+  }
+
+  public boolean canDTD()
+  {
+    return false;
+  }
+}
@@ -0,0 +1,216 @@
+package org.sufrin.picoxml;
+
+import java.util.*;
+
+/**
+ * An EntityTable maps entity names to their expansions. An XMLScanner
+ * looks up each <tt>&amp;name;</tt> it reads in its table by the name's
+ * characters and their hash (computed as they are read), so it makes no String of the name.
+ * A table may be populated from a Map, and may be shared between scanners
+ * (in many threads): as with a SymbolTable, lookups take no lock.
+ * <p>
+ * Character references (<tt>&amp;#ddd;</tt> and <tt>&amp;#xhhh;</tt>) are decoded
+ * by <tt>decodeCharacter</tt>, which caches the Strings for the code points it has recently decoded.
+ */
+public class EntityTable
+{
+  /** An immutable link in a hash chain */
+  protected static final class Entry
+  {
+    final String name, value;
+    final int    hash;
+    final Entry  next;
+
+    Entry(String name, String value, int hash, Entry next)
+    {
+      this.name  = name;
+      this.value = value;
+      this.hash  = hash;
+      this.next  = next;
+    }
+  }
+
+  /** The hash chains: the length is a power of two */
+  protected volatile Entry[] table;
+
+  /** Number of entities in the table */
+  protected int count;
+
+  /** An empty table */
+  public EntityTable()
+  {
+    table = new Entry[16];
+  }
+
+  /** A table with the entities of the given map */
+  public EntityTable(Map<String, String> entities)
+  {
+    this();
+    putAll(entities);
+  }
+
+  /** A table with the entities of the given table */
+  public EntityTable(EntityTable entities)
+  {
+    this();
+    putAll(entities, true);
+  }
+
+  /** A table with the predefined entities: amp, lt, gt, apos, quot (and nbsp, as a space) */
+  public static EntityTable defaults()
+  {
+    EntityTable t = new EntityTable();
+    t.put("amp", "&");
+    t.put("lt", "<");
+    t.put("gt", ">");
+    t.put("apos", "'");
+    t.put("quot", "\"");
+    t.put("nbsp", " ");
+    return t;
+  }
+
+  /** The predefined entities (this table must not be changed) */
+  static final EntityTable DEFAULTS = defaults();
+
+  /**
+   * The expansion of the entity named by chars[start..start+length), whose
+   * hash (as computed by <tt>SymbolTable.hash</tt>) is given; or null.
+   */
+  public String get(char[] chars, int start, int length, int hash)
+  {
+    Entry[] t = table;
+    for (Entry e = t[SymbolTable.index(hash, t.length)]; e != null; e = e.next)
+      if (e.hash == hash && SymbolTable.matches(e.name, chars, start, length)) return e.value;
+    return null;
+  }
+
+  /** The expansion of the named entity; or null */
+  public String get(String name)
+  {
+    int     hash = name.hashCode();
+    Entry[] t    = table;
+    for (Entry e = t[SymbolTable.index(hash, t.length)]; e != null; e = e.next)
+      if (e.hash == hash && e.name.equals(name)) return e.value;
+    return null;
+  }
+
+  /** Define (or redefine) the named entity */
+  public synchronized void put(String name, String value)
+  {
+    define(name, value, true);
+  }
+
+  /** Define the named entity if it is not already defined; return true if it was defined */
+  public synchronized boolean putIfAbsent(String name, String value)
+  {
+    return define(name, value, false);
+  }
+
+  /** Define (or redefine) all the entities of the given map */
+  public synchronized void putAll(Map<String, String> entities)
+  {
+    for (Map.Entry<String, String> e : entities.entrySet()) define(e.getKey(), e.getValue(), true);
+  }
+
+  /** Define all the entities of the given table; redefining those already defined only if replace */
+  public synchronized void putAll(EntityTable entities, boolean replace)
+  {
+    for (Entry chain : entities.table)
+      for (Entry e = chain; e != null; e = e.next) define(e.name, e.value, replace);
+  }
+
+  /** Remove all the entities */
+  public synchronized void clear()
+  {
+    table = new Entry[16];
+    count = 0;
+  }
+
+  /** Number of entities in the table */
+  public synchronized int size()
+  {
+    return count;
+  }
+
+  /** Add (or, if replace, redefine) an entity (with the lock held) */
+  protected boolean define(String name, String value, boolean replace)
+  {
+    if (value == null) throw new NullPointerException("Entity " + name + " has no value");
+    int     hash = name.hashCode();
+    Entry[] t    = table;
+    int     i    = SymbolTable.index(hash, t.length);
+    for (Entry e = t[i]; e != null; e = e.next)
+      if (e.hash == hash && e.name.equals(name))
+      {
+        if (!replace) return false;
+        // Rebuild the chain without the old definition, so that readers never see a partly-changed entry
+        Entry chain = null;
+        for (Entry f = t[i]; f != null; f = f.next)
+          if (f != e) chain = new Entry(f.name, f.value, f.hash, chain);
+        t[i]  = new Entry(name, value, hash, chain);
+        table = t;
+        return true;
+      }
+    if (count >= t.length - (t.length >> 2))
+    {
+      Entry[] n = new Entry[2 * t.length];
+      for (Entry chain : t)
+        for (Entry e = chain; e != null; e = e.next)
+        {
+          int j = SymbolTable.index(e.hash, n.length);
+          n[j] = new Entry(e.name, e.value, e.hash, n[j]);
+        }
+      t = n;
+      i = SymbolTable.index(hash, t.length);
+    }
+    t[i] = new Entry(name, value, hash, t[i]);
+    count++;
+    table = t;
+    return true;
+  }
+
+  /** Recently-decoded character references, indexed by (the low bits of) their code point */
+  protected static final String[] characters = new String[1024];
+
+  /**
+   * Decode the body of a character reference: chars[start..start+length) is
+   * decimal digits, or x followed by hexadecimal digits. Returns the
+   * (one or two char) String for the code point, or null if it is ill-formed
+   * or not a Unicode code point.
+   */
+  public static String decodeCharacter(char[] chars, int start, int length)
+  {
+    int radix = 10;
+    if (length > 0 && (chars[start] == 'x' || chars[start] == 'X'))
+    {
+      radix = 16;
+      start++;
+      length--;
+    }
+    if (length == 0) return null;
+    int cp = 0;
+    for (int i = start, end = start + length; i < end; i++)
+    {
+      char c = chars[i];
+      int  d = '0' <= c && c <= '9'               ? c - '0'
+             : radix == 16 && 'a' <= c && c <= 'f' ? c - 'a' + 10
+             : radix == 16 && 'A' <= c && c <= 'F' ? c - 'A' + 10
+             : -1;
+      if (d < 0) return null;
+      cp = cp * radix + d;
+      if (cp > Character.MAX_CODE_POINT) return null;
+    }
+    if (Character.isSurrogate((char) cp) && cp < Character.MIN_SUPPLEMENTARY_CODE_POINT) return null;
+    String[] cache = characters;
+    int      slot  = cp & (cache.length - 1);
+    String   s     = cache[slot];
+    if (s == null || s.codePointAt(0) != cp) cache[slot] = s = new String(Character.toChars(cp));
+    return s;
+  }
+
+  /** Decode the body of a character reference given as a String: see <tt>decodeCharacter(char[], int, int)</tt> */
+  public static String decodeCharacter(String body)
+  {
+    return decodeCharacter(body.toCharArray(), 0, body.length());
+  }
+}
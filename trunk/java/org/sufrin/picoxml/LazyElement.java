@@ -0,0 +1,76 @@
+package org.sufrin.picoxml;
+
+import java.io.PrintWriter;
+import java.util.*;
+
+/**
+ * A LazyElement is an AppElement, made by an XMLLazyParser, whose
+ * subtrees are scanned and built only when they are first needed:
+ * when it is iterated over, printed, has its children looked up, or has a subtree added to it.
+ * Its own subelements are themselves LazyElements.
+ * <p>
+ * Errors in the text of an element's content are reported (as XMLSyntax exceptions)
+ * when its subtrees are built.
+ */
+public class LazyElement extends AppElement
+{
+  protected final XMLLazyParser.Index index;
+  /** The number of this element in the index */
+  protected final int                 element;
+  protected volatile boolean          built;
+
+  public LazyElement(String kind, Map<String, String> attrs, XMLLazyParser.Index index, int element)
+  {
+    super(kind, attrs);
+    this.index   = index;
+    this.element = element;
+  }
+
+  /** Have the subtrees of this element been built yet */
+  public boolean isBuilt()
+  {
+    return built;
+  }
+
+  /** Build the subtrees of this element, if they have not yet been built */
+  public void build()
+  {
+    if (!built) index.build(this);
+  }
+
+  public void addTree(AppTree t)
+  {
+    build();
+    super.addTree(t);
+  }
+
+  public Iterator<AppTree> iterator()
+  {
+    build();
+    return super.iterator();
+  }
+
+  public AppElement getChild(String kind)
+  {
+    build();
+    return super.getChild(kind);
+  }
+
+  public List<AppElement> getChildren(String kind)
+  {
+    build();
+    return super.getChildren(kind);
+  }
+
+  public AppElement getChild(String attribute, String value)
+  {
+    build();
+    return super.getChild(attribute, value);
+  }
+
+  public void printTo(PrintWriter out, int indent)
+  {
+    build();
+    super.printTo(out, indent);
+  }
+}
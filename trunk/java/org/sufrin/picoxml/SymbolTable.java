@@ -0,0 +1,144 @@
+package org.sufrin.picoxml;
+
+/**
+ * A SymbolTable maps runs of characters to canonical Strings, without
+ * first making a String of the run. An XMLScanner uses one to
+ * name elements and attributes, so the names that it delivers
+ * can be compared by identity; and a table can be shared by
+ * many scanners (in many threads) without recourse to
+ * <tt>String.intern()</tt>.
+ * <p>
+ * Lookups that find their symbol take no lock; only the insertion
+ * of a new symbol is synchronized.
+ */
+public class SymbolTable
+{
+  /** An immutable link in a hash chain */
+  protected static final class Entry
+  {
+    final String name;
+    final int    hash;
+    final Entry  next;
+
+    Entry(String name, int hash, Entry next)
+    {
+      this.name = name;
+      this.hash = hash;
+      this.next = next;
+    }
+  }
+
+  /** The hash chains: the length is a power of two */
+  protected volatile Entry[] table;
+
+  /** Number of symbols in the table */
+  protected int count;
+
+  public SymbolTable()
+  {
+    this(256);
+  }
+
+  /** A table sized for about the given number of symbols */
+  public SymbolTable(int capacity)
+  {
+    int n = 16;
+    while (n < capacity) n <<= 1;
+    table = new Entry[n];
+  }
+
+  /** The hash of chars[start..start+length): the same as that of the corresponding String */
+  public static int hash(char[] chars, int start, int length)
+  {
+    int h = 0;
+    for (int i = start, end = start + length; i < end; i++)
+      h = 31 * h + chars[i];
+    return h;
+  }
+
+  /** Spread the hash bits before indexing the table */
+  protected static int index(int hash, int length)
+  {
+    return (hash ^ (hash >>> 16)) & (length - 1);
+  }
+
+  /**
+   * The canonical String with the characters chars[start..start+length), whose
+   * hash (as computed by <tt>hash</tt>) is given.
+   */
+  public String lookup(char[] chars, int start, int length, int hash)
+  {
+    Entry[] t = table;
+    for (Entry e = t[index(hash, t.length)]; e != null; e = e.next)
+      if (e.hash == hash && matches(e.name, chars, start, length)) return e.name;
+    return insert(chars, start, length, hash);
+  }
+
+  /** The canonical String with the same characters as s */
+  public String lookup(String s)
+  {
+    int     hash = s.hashCode();
+    Entry[] t    = table;
+    for (Entry e = t[index(hash, t.length)]; e != null; e = e.next)
+      if (e.hash == hash && e.name.equals(s)) return e.name;
+    synchronized (this)
+    {
+      String name = find(s.toCharArray(), 0, s.length(), hash);
+      return name != null ? name : add(s, hash);
+    }
+  }
+
+  /** Number of symbols in the table */
+  public synchronized int size()
+  {
+    return count;
+  }
+
+  protected synchronized String insert(char[] chars, int start, int length, int hash)
+  {
+    String name = find(chars, start, length, hash);
+    return name != null ? name : add(new String(chars, start, length), hash);
+  }
+
+  /** Look for a symbol (with the lock held) */
+  protected String find(char[] chars, int start, int length, int hash)
+  {
+    Entry[] t = table;
+    for (Entry e = t[index(hash, t.length)]; e != null; e = e.next)
+      if (e.hash == hash && matches(e.name, chars, start, length)) return e.name;
+    return null;
+  }
+
+  /** Add a new symbol (with the lock held) */
+  protected String add(String name, int hash)
+  {
+    Entry[] t = table;
+    if (count >= t.length - (t.length >> 2)) t = resize(t);
+    int i = index(hash, t.length);
+    t[i] = new Entry(name, hash, t[i]);
+    count++;
+    table = t;
+    return name;
+  }
+
+  /** A table of twice the size, with the same symbols */
+  protected Entry[] resize(Entry[] t)
+  {
+    Entry[] n = new Entry[2 * t.length];
+    for (Entry chain : t)
+      for (Entry e = chain; e != null; e = e.next)
+      {
+        int i = index(e.hash, n.length);
+        n[i] = new Entry(e.name, e.hash, n[i]);
+      }
+    return n;
+  }
+
+  protected static boolean matches(String name, char[] chars, int start, int length)
+  {
+    if (name.length() != length) return false;
+    for (int i = 0; i < length; i++)
+      if (name.charAt(i) != chars[start + i]) return false;
+    return true;
+  }
+}
@@ -0,0 +1,55 @@
+package org.sufrin.picoxml;
+
+import jdk.incubator.vector.*;
+
+/**
+ * A CharSearch that uses the (incubating) Vector API to examine the preferred number of
+ * characters at a time (16 or 32, on most hardware); only the remainder of a block
+ * too short to fill a vector is examined a character at a time. It is loaded by
+ * <tt>CharSearch.choose</tt> only if the <tt>jdk.incubator.vector</tt> module is present.
+ */
+final class VectorCharSearch extends CharSearch
+{
+  static final VectorSpecies<Short> SPECIES = ShortVector.SPECIES_PREFERRED;
+  static final int                  LENGTH  = SPECIES.length();
+
+  VectorCharSearch()
+  {
+    // Vectors this short (or emulated in software) would be slower than the scalar loops
+    if (LENGTH < 8 || VectorShape.preferredShape().vectorBitSize() < 128) throw new UnsupportedOperationException("Vectors too short");
+  }
+
+  int indexOf(char[] b, int from, int to, char c)
+  {
+    int i = from;
+    for (int last = to - LENGTH; i <= last; i += LENGTH)
+    { VectorMask<Short> m = ShortVector.fromCharArray(SPECIES, b, i).eq((short) c);
+      if (m.anyTrue()) return i + m.firstTrue();
+    }
+    return super.indexOf(b, i, to, c);
+  }
+
+  int indexOf(char[] b, int from, int to, char c1, char c2)
+  {
+    int i = from;
+    for (int last = to - LENGTH; i <= last; i += LENGTH)
+    { ShortVector       v = ShortVector.fromCharArray(SPECIES, b, i);
+      VectorMask<Short> m = v.eq((short) c1).or(v.eq((short) c2));
+      if (m.anyTrue()) return i + m.firstTrue();
+    }
+    return super.indexOf(b, i, to, c1, c2);
+  }
+
+  int count(char[] b, int from, int to, char c)
+  {
+    int n = 0, i = from;
+    for (int last = to - LENGTH; i <= last; i += LENGTH)
+      n += ShortVector.fromCharArray(SPECIES, b, i).eq((short) c).trueCount();
+    return n + super.count(b, i, to, c);
+  }
+
+  public String toString()
+  {
+    return "vector " + SPECIES;
+  }
+}
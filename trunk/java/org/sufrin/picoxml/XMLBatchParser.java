@@ -0,0 +1,161 @@
+package org.sufrin.picoxml;
+
+import java.io.*;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * An XMLBatchParser&lt;T> parses many documents concurrently, using the given
+ * Executor, into trees of type <tt>T</tt>. Scanners and parsers are drawn from an
+ * XMLParserPool, so their buffers are reused across documents. The outcome
+ * for each document is reported separately: a malformed document does not
+ * prevent the others from being parsed.
+ * <p>
+ * Any Executor will do: a fixed pool of about as many threads as
+ * there are processors suits documents that are already in memory or
+ * in fast storage; on JDK 21 and later
+ * <tt>Executors.newVirtualThreadPerTaskExecutor()</tt> suits documents
+ * whose reading blocks.
+ */
+public class XMLBatchParser<T>
+{
+  /** The outcome of parsing a single document: either a tree or an error */
+  public static class Result<T>
+  {
+    /** The Path, InputStream, or Reader that was parsed */
+    public final Object    source;
+    /** The tree, if the document was parsed */
+    public final T         tree;
+    /** The reason the document was not parsed, if it wasn't */
+    public final Throwable error;
+
+    public Result(Object source, T tree, Throwable error)
+    {
+      this.source = source;
+      this.tree   = tree;
+      this.error  = error;
+    }
+
+    /** Was the document parsed */
+    public boolean ok()
+    {
+      return error == null;
+    }
+
+    public String toString()
+    {
+      return source + (ok() ? ": ok" : ": " + error);
+    }
+  }
+
+  protected final XMLParserPool<T> pool;
+  protected final Executor         executor;
+
+  /** Parse with parsers from the given pool, using the given executor */
+  public XMLBatchParser(XMLParserPool<T> pool, Executor executor)
+  {
+    this.pool     = pool;
+    this.executor = executor;
+  }
+
+  /** Parse with parsers built by the given (thread-safe) factory, using the given executor */
+  public XMLBatchParser(XMLTreeFactory<T> factory, Executor executor)
+  {
+    this(new XMLParserPool<T>(factory), executor);
+  }
+
+  /** The pool from which parsers are drawn */
+  public XMLParserPool<T> getPool()
+  {
+    return pool;
+  }
+
+  /** Start parsing the UTF-8 encoded document in the given file */
+  public CompletableFuture<Result<T>> submit(final Path path)
+  {
+    return CompletableFuture.supplyAsync(new Job(path)
+    {
+      T parse() throws IOException
+      {
+        return pool.parse(path);
+      }
+    }, executor);
+  }
+
+  /** Start parsing the UTF-8 encoded document read from the given stream (which is closed afterwards) */
+  public CompletableFuture<Result<T>> submit(final InputStream stream)
+  {
+    return CompletableFuture.supplyAsync(new Job(stream)
+    {
+      T parse()
+      {
+        return pool.parse(stream);
+      }
+    }, executor);
+  }
+
+  /** Start parsing the document read from the given Reader (which is closed afterwards) */
+  public CompletableFuture<Result<T>> submit(final Reader reader)
+  {
+    return CompletableFuture.supplyAsync(new Job(reader)
+    {
+      T parse()
+      {
+        return pool.parse(reader);
+      }
+    }, executor);
+  }
+
+  /** Parse the given files concurrently, and return their outcomes in the same order */
+  public List<Result<T>> parsePaths(Collection<? extends Path> paths)
+  {
+    List<CompletableFuture<Result<T>>> futures = new ArrayList<CompletableFuture<Result<T>>>(paths.size());
+    for (Path path : paths) futures.add(submit(path));
+    return join(futures);
+  }
+
+  /** Parse the given streams concurrently, and return their outcomes in the same order */
+  public List<Result<T>> parseStreams(Collection<? extends InputStream> streams)
+  {
+    List<CompletableFuture<Result<T>>> futures = new ArrayList<CompletableFuture<Result<T>>>(streams.size());
+    for (InputStream stream : streams) futures.add(submit(stream));
+    return join(futures);
+  }
+
+  protected List<Result<T>> join(List<CompletableFuture<Result<T>>> futures)
+  {
+    List<Result<T>> results = new ArrayList<Result<T>>(futures.size());
+    for (CompletableFuture<Result<T>> future : futures) results.add(future.join());
+    return results;
+  }
+
+  /** Parses a single source, capturing its outcome as a Result */
+  protected abstract class Job implements java.util.function.Supplier<Result<T>>
+  {
+    final Object source;
+
+    Job(Object source)
+    {
+      this.source = source;
+    }
+
+    abstract T parse() throws Exception;
+
+    /** 
+     * The outcome of the parse: an Exception, or a StackOverflowError (from a deeply nested document), is the document's own;
+     * any other Error (such as an OutOfMemoryError) is thrown. 
+     */
+    public Result<T> get()
+    {
+      try
+      {
+        return new Result<T>(source, parse(), null);
+      }
+      catch (Exception | StackOverflowError error)
+      {
+        return new Result<T>(source, null, error);
+      }
+    }
+  }
+}
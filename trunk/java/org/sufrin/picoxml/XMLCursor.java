@@ -0,0 +1,317 @@
+package org.sufrin.picoxml;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.*;
+
+/**
+ * An XMLCursor reads an XML document one event at a time, at the
+ * request of its client (a "pull" parser), rather than by driving an
+ * XMLHandler through the whole document.  It is built on an XMLScanner,
+ * which it steps only as far as is needed to deliver the next event; so a
+ * client can stop early, skip elements it is not interested in,
+ * and interleave reading the document with other work.
+ * <p>
+ * Text delivered by <tt>text()</tt> is a transient view, and the map delivered
+ * by <tt>attributes()</tt> is reused; both are valid only until the next call of <tt>next()</tt>.
+ */
+public class XMLCursor implements Closeable
+{
+  /** The kinds of event a cursor can be positioned at */
+  public enum Event
+  {
+    START_DOCUMENT, START_ELEMENT, END_ELEMENT, TEXT, COMMENT, PI, DTD, END_DOCUMENT
+  }
+
+  /** The scanner that is stepped to deliver events */
+  protected final XMLScanner scanner;
+
+  /** The current event */
+  protected Event event;
+  /** Name of the current element (START_ELEMENT or END_ELEMENT) */
+  protected String name;
+  /** Attributes of the current element (START_ELEMENT) */
+  protected XMLScanner.Attributes atts;
+  /** Text of the current TEXT, COMMENT, PI, or DTD */
+  protected CharSequence text;
+  /** Was the current TEXT from a CDATA section */
+  protected boolean cdata;
+
+  /** Names of the open elements: kinds[0..depth) */
+  protected String[] kinds = new String[16];
+  protected int      depth;
+
+  /** True once an event has been delivered by the scanner during this step */
+  protected boolean fresh;
+  /** The name of an END_ELEMENT that is yet to be delivered (from &lt;kind .../>) */
+  protected String pendingEnd;
+
+  /** Receives events from the scanner */
+  protected final XMLHandler recorder = new XMLHandler()
+  {
+    public void startElement(String kind, Map<String, String> attributes)
+    {
+      record(Event.START_ELEMENT, kind, null);
+      atts = (XMLScanner.Attributes) attributes;
+      push(kind);
+    }
+
+    public void endElement(String kind)
+    {
+      if (fresh)
+        pendingEnd = kind;
+      else
+      {
+        record(Event.END_ELEMENT, kind, null);
+        pop(kind);
+      }
+    }
+
+    public void acceptComment(CharSequence data)
+    {
+      record(Event.COMMENT, null, data);
+    }
+
+    public void acceptDTD(CharSequence data)
+    {
+      record(Event.DTD, null, data);
+    }
+
+    public void acceptPI(CharSequence data)
+    {
+      record(Event.PI, null, data);
+    }
+
+    public void acceptPCDATA(CharSequence data, boolean isCDATA)
+    {
+      record(Event.TEXT, null, data);
+      cdata = isCDATA;
+    }
+
+    public void startDocument()
+    {
+      record(Event.START_DOCUMENT, null, null);
+    }
+
+    public void endDocument()
+    {
+      record(Event.END_DOCUMENT, null, null);
+      if (depth > 0)
+        throw new RuntimeException(String.format("Premature end of document in unclosed <%s>", kinds[depth - 1]));
+    }
+
+    public String decodeEntity(String entity)
+    {
+      return XMLCursor.this.decodeEntity(entity);
+    }
+  };
+
+  /** Construct a cursor that is not yet positioned on a document */
+  protected XMLCursor()
+  {
+    scanner = new XMLScanner(recorder);
+    scanner.setTransientText(true);
+    scanner.setReuseAttributes(true);
+  }
+
+  /** A cursor positioned at the START_DOCUMENT of the XML read from the given Reader */
+  public XMLCursor(Reader reader)
+  {
+    this();
+    scanner.open(reader);
+  }
+
+  /** A cursor positioned at the START_DOCUMENT of the UTF-8 encoded XML in bytes[position..limit) */
+  public XMLCursor(ByteBuffer bytes)
+  {
+    this();
+    scanner.open(bytes);
+  }
+
+  /** A cursor positioned at the START_DOCUMENT of the UTF-8 encoded XML in the given (memory-mapped) file */
+  public XMLCursor(Path path) throws IOException
+  {
+    this();
+    scanner.open(path);
+  }
+
+  /** Should return the coding for &amp;entityname; (or null to use the default coding) */
+  public String decodeEntity(String entity)
+  {
+    return null;
+  }
+
+  protected void record(Event event, String name, CharSequence text)
+  {
+    this.event = event;
+    this.name  = name;
+    this.text  = text;
+    this.atts  = null;
+    this.cdata = false;
+    this.fresh = true;
+  }
+
+  protected void push(String kind)
+  {
+    if (depth == kinds.length) kinds = Arrays.copyOf(kinds, 2 * depth);
+    kinds[depth++] = kind;
+  }
+
+  protected void pop(String kind)
+  {
+    String tkind = depth == 0 ? "" : kinds[--depth];
+    if (tkind != kind && !tkind.equals(kind))
+      throw new RuntimeException(String.format("Non-nested: <%s>...</%s>", tkind, kind));
+    kinds[depth] = null;
+  }
+
+  /** Is there an event after the current one */
+  public boolean hasNext()
+  {
+    return event != Event.END_DOCUMENT;
+  }
+
+  /** Advance to, and return the type of, the next event */
+  public Event next()
+  {
+    if (event == Event.END_DOCUMENT) throw new NoSuchElementException("XMLCursor at END_DOCUMENT");
+    if (pendingEnd != null)
+    {
+      String kind = pendingEnd;
+      pendingEnd = null;
+      record(Event.END_ELEMENT, kind, null);
+      pop(kind);
+    }
+    else
+    {
+      fresh = false;
+      while (!fresh && scanner.step()) continue;
+    }
+    return event;
+  }
+
+  /**
+   * Advance to the next START_ELEMENT or END_ELEMENT (passing over any
+   * text, comments, and PIs), and return its type; or return END_DOCUMENT.
+   */
+  public Event nextTag()
+  {
+    Event e;
+    do e = next(); while (e != Event.START_ELEMENT && e != Event.END_ELEMENT && e != Event.END_DOCUMENT);
+    return e;
+  }
+
+  /**
+   * When positioned at a START_ELEMENT, advance to its matching END_ELEMENT,
+   * passing over all its content. The content is not tokenized: its brackets 
+   * are just counted (as for an element skipped by an XMLFilter).
+   */
+  public void skipElement()
+  {
+    if (event != Event.START_ELEMENT) throw new IllegalStateException("skipElement() at " + event);
+    if (pendingEnd != null)
+      next();
+    else
+    {
+      String kind = name;
+      scanner.skipContent(kind);
+      record(Event.END_ELEMENT, kind, null);
+      pop(kind);
+    }
+  }
+
+  /** Skip (or deliver) elements as the given filter decides: see <tt>XMLScanner.setFilter</tt> */
+  public void setFilter(XMLFilter filter)
+  {
+    scanner.setFilter(filter);
+  }
+
+  /** Type of the current event */
+  public Event eventType()
+  {
+    return event;
+  }
+
+  /** Name of the current START_ELEMENT or END_ELEMENT */
+  public String name()
+  {
+    return name;
+  }
+
+  /**
+   * Text of the current TEXT, COMMENT, PI or DTD event: valid only
+   * until the next call of <tt>next()</tt>.
+   */
+  public CharSequence text()
+  {
+    return text;
+  }
+
+  /** Text of the current TEXT, COMMENT, PI or DTD event, as a String */
+  public String getText()
+  {
+    return text == null ? null : text.toString();
+  }
+
+  /** Did the current TEXT come from a CDATA section */
+  public boolean isCDATA()
+  {
+    return cdata;
+  }
+
+  /**
+   * Attributes of the current START_ELEMENT (empty at any other event): valid
+   * only until the next call of <tt>next()</tt>.
+   */
+  public Map<String, String> attributes()
+  {
+    return atts == null ? Collections.<String, String>emptyMap() : atts;
+  }
+
+  /** Value of the named attribute of the current START_ELEMENT, or null */
+  public String attribute(String key)
+  {
+    return atts == null ? null : atts.get(key);
+  }
+
+  /** Number of attributes of the current START_ELEMENT */
+  public int attributeCount()
+  {
+    return atts == null ? 0 : atts.size();
+  }
+
+  /** Name of the i'th attribute of the current START_ELEMENT */
+  public String attributeName(int i)
+  {
+    return atts.name(i);
+  }
+
+  /** Value of the i'th attribute of the current START_ELEMENT */
+  public String attributeValue(int i)
+  {
+    return atts.value(i);
+  }
+
+  /**
+   * Number of elements open at the current event: at a START_ELEMENT this
+   * includes the element that is starting; at an END_ELEMENT it excludes the element
+   * that is ending.
+   */
+  public int depth()
+  {
+    return depth;
+  }
+
+  /** Line on which the current event's last token started */
+  public int lineNumber()
+  {
+    return scanner.lineNumber();
+  }
+
+  /** Abandon the document, closing its source */
+  public void close()
+  {
+    scanner.close();
+  }
+}
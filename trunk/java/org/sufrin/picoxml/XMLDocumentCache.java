@@ -0,0 +1,241 @@
+package org.sufrin.picoxml;
+
+import java.io.*;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An XMLDocumentCache&lt;T> keeps the trees, of type <tt>T</tt>, of the documents
+ * most recently read from files, so that a file that is read repeatedly is parsed
+ * only once for as long as it is unchanged. A tree is valid while its file has the
+ * modification time and size it had when it was parsed: a file that has changed is parsed again.
+ * <p>
+ * The cache is bounded by the total <i>weight</i> of its trees (an estimate of the
+ * memory they occupy: see <tt>weigh</tt>); when it is exceeded the least recently used
+ * trees are evicted. It may be used by many threads at once: the trees it returns are
+ * shared, so must not be changed. If several threads ask for a file that is not in the
+ * cache at the same time it is parsed just once, by the first of them, and the others wait for its tree.
+ */
+public class XMLDocumentCache<T>
+{
+  /** The tree (to be) parsed from a version of a file */
+  protected static final class Entry<T>
+  {
+    final long                 modified, size;
+    final CompletableFuture<T> tree = new CompletableFuture<T>();
+    /** Time (by the cache's clock) of the last use of the tree */
+    volatile long              used;
+    /** Weight of the tree, once it has been counted in the cache's total (guarded by the cache) */
+    long                       weight;
+    boolean                    counted;
+
+    Entry(long modified, long size)
+    {
+      this.modified = modified;
+      this.size     = size;
+    }
+  }
+
+  /** A snapshot of the cache's statistics */
+  public static final class Stats
+  {
+    public final long hits, misses, evictions, size, weight;
+
+    Stats(long hits, long misses, long evictions, long size, long weight)
+    {
+      this.hits      = hits;
+      this.misses    = misses;
+      this.evictions = evictions;
+      this.size      = size;
+      this.weight    = weight;
+    }
+
+    public String toString()
+    {
+      return String.format("hits %d, misses %d, evictions %d, size %d, weight %d", hits, misses, evictions, size, weight);
+    }
+  }
+
+  protected final XMLParserPool<T>                  pool;
+  protected final long                              maxWeight;
+  protected final ConcurrentHashMap<Path, Entry<T>> entries = new ConcurrentHashMap<Path, Entry<T>>();
+  /** The clock by which uses are ordered */
+  protected final AtomicLong                        clock   = new AtomicLong();
+  protected final AtomicLong                        hits    = new AtomicLong(), misses = new AtomicLong(), evictions = new AtomicLong();
+  /** Total weight of the counted trees (guarded by this) */
+  protected long                                    weight;
+
+  /** A cache of trees parsed by the given pool, whose total weight is at most maxWeight */
+  public XMLDocumentCache(XMLParserPool<T> pool, long maxWeight)
+  {
+    this.pool      = pool;
+    this.maxWeight = maxWeight;
+  }
+
+  /** A cache of trees made by the given factory, whose total weight is at most maxWeight */
+  public XMLDocumentCache(XMLTreeFactory<T> factory, long maxWeight)
+  {
+    this(new XMLParserPool<T>(factory), maxWeight);
+  }
+
+  /** The tree of the UTF-8 encoded document in the file at the given path: parsed, unless it is in the cache */
+  public T get(Path path) throws IOException
+  {
+    path = path.toAbsolutePath().normalize();
+    BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+    long modified = attributes.lastModifiedTime().toMillis(), size = attributes.size();
+    for (;;)
+    {
+      Entry<T> entry = entries.get(path);
+      if (entry != null && entry.modified == modified && entry.size == size)
+      {
+        hits.incrementAndGet();
+        entry.used = clock.incrementAndGet();
+        return await(entry);
+      }
+      Entry<T> fresh = new Entry<T>(modified, size);
+      if (entry == null ? entries.putIfAbsent(path, fresh) == null : replace(path, entry, fresh))
+      {
+        misses.incrementAndGet();
+        fresh.used = clock.incrementAndGet();
+        return load(path, fresh);
+      }
+      // Another thread has just changed the entry: look again
+    }
+  }
+
+  /** Parse the file for the given entry, and count its tree's weight */
+  protected T load(Path path, Entry<T> entry) throws IOException
+  {
+    T tree;
+    try
+    {
+      tree = pool.parse(path);
+    }
+    catch (IOException | RuntimeException | Error ex)
+    {
+      remove(path, entry);
+      entry.tree.completeExceptionally(ex);
+      throw ex;
+    }
+    long w = weigh(tree, entry.size);
+    synchronized (this)
+    {
+      if (entries.get(path) == entry)
+      {
+        entry.weight  = w;
+        entry.counted = true;
+        weight       += w;
+      }
+    }
+    entry.tree.complete(tree);
+    evict();
+    return tree;
+  }
+
+  /** The tree of the given entry, when it has been parsed */
+  protected T await(Entry<T> entry) throws IOException
+  {
+    try
+    {
+      return entry.tree.get();
+    }
+    catch (InterruptedException ex)
+    {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for a document to be parsed");
+    }
+    catch (ExecutionException ex)
+    {
+      Throwable cause = ex.getCause();
+      if (cause instanceof IOException)      throw (IOException) cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error)            throw (Error) cause;
+      throw new RuntimeException(cause);
+    }
+  }
+
+  /** Replace the entry for the path (if it is still the given one), uncounting its weight */
+  protected synchronized boolean replace(Path path, Entry<T> entry, Entry<T> fresh)
+  {
+    if (!entries.replace(path, entry, fresh)) return false;
+    uncount(entry);
+    return true;
+  }
+
+  /** Remove the entry for the path (if it is still the given one), uncounting its weight */
+  protected synchronized boolean remove(Path path, Entry<T> entry)
+  {
+    if (!entries.remove(path, entry)) return false;
+    uncount(entry);
+    return true;
+  }
+
+  protected void uncount(Entry<T> entry)
+  {
+    if (entry.counted) weight -= entry.weight;
+    entry.counted = false;
+  }
+
+  /** Evict the least recently used trees until the total weight is within bounds */
+  protected synchronized void evict()
+  {
+    if (weight <= maxWeight) return;
+    // Ordered by time of last use, as it is now (no two uses are at the same time)
+    TreeMap<Long, Map.Entry<Path, Entry<T>>> counted = new TreeMap<Long, Map.Entry<Path, Entry<T>>>();
+    for (Map.Entry<Path, Entry<T>> e : entries.entrySet())
+      if (e.getValue().counted) counted.put(e.getValue().used, e);
+    for (Map.Entry<Path, Entry<T>> e : counted.values())
+    {
+      if (weight <= maxWeight) break;
+      if (remove(e.getKey(), e.getValue())) evictions.incrementAndGet();
+    }
+  }
+
+  /**
+   * An estimate of the number of bytes occupied by a tree parsed from a file of the given size:
+   * for an AppTree, an estimate from its nodes and text; otherwise four times the size of the file.
+   * Override this to weigh trees differently.
+   */
+  protected long weigh(T tree, long fileSize)
+  {
+    return tree instanceof AppTree ? estimate((AppTree) tree) : 4 * fileSize;
+  }
+
+  /** An estimate of the number of bytes occupied by an AppTree */
+  public static long estimate(AppTree tree)
+  {
+    if (tree instanceof AppElement)
+    {
+      AppElement element = (AppElement) tree;
+      long       bytes   = 96 + (element.attrs == null ? 0 : 48 + 16 * element.attrs.size());
+      for (AppTree t : element) bytes += 8 + estimate(t);
+      return bytes;
+    }
+    if (tree instanceof AppText) return 64 + 2L * ((AppText) tree).text.length();
+    return 64;
+  }
+
+  /** Forget the tree of the file at the given path (if there is one) */
+  public void invalidate(Path path)
+  {
+    path = path.toAbsolutePath().normalize();
+    Entry<T> entry = entries.get(path);
+    if (entry != null) remove(path, entry);
+  }
+
+  /** Forget all the trees */
+  public synchronized void clear()
+  {
+    for (Map.Entry<Path, Entry<T>> e : entries.entrySet()) remove(e.getKey(), e.getValue());
+  }
+
+  /** The cache's statistics */
+  public synchronized Stats stats()
+  {
+    return new Stats(hits.get(), misses.get(), evictions.get(), entries.size(), weight);
+  }
+}
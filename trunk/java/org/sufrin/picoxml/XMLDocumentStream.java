@@ -0,0 +1,172 @@
+package org.sufrin.picoxml;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+
+/**
+ * An XMLDocumentStream&lt;T> parses a stream of XML documents -- the messages
+ * of a log or a message bus, for example -- building a tree of type <tt>T</tt>
+ * for each, and handing it to a Consumer as soon as its document is complete
+ * (so a consumer is never kept waiting for the start of the next document).
+ * The same scanner, with its buffers and symbol table, reads every document;
+ * and the stream is never closed.
+ * <p>
+ * The documents of a stream may be
+ * <ul>
+ * <li> concatenated: each ends with the end tag of its root element;
+ * <li> delimited: separated by a delimiter character (such as <tt>'\0'</tt>) that
+ *      appears in no document, so that a malformed document can be skipped;
+ * <li> framed: each preceded by the length (in bytes) of its UTF-8 encoding, as a
+ *      4-byte big-endian integer. A frame longer than the stream's maximum frame length
+ *      (by default <tt>DEFAULT_MAX_FRAME_LENGTH</tt>) is rejected with an IOException,
+ *      before any space is allocated for it.
+ * </ul>
+ * Errors in a delimited or framed document are handed to an error Consumer (if there is one,
+ * and the next document is then parsed); otherwise they are thrown.
+ * An XMLDocumentStream is not thread-safe.
+ */
+public class XMLDocumentStream<T>
+{
+  protected final XMLParser<T> parser;
+  protected final XMLScanner   scanner;
+  /** Holds the current frame of a framed stream */
+  protected byte[]             frame = new byte[8192];
+  /** The length of the longest frame accepted in a framed stream */
+  protected final int          maxFrameLength;
+
+  /** The maximum frame length of a stream constructed without one: 16MB */
+  public static final int DEFAULT_MAX_FRAME_LENGTH = 1 << 24;
+
+  public XMLDocumentStream(XMLTreeFactory<T> factory)
+  {
+    this(new XMLParser<T>(factory));
+  }
+
+  /** Build trees with the given factory, accepting frames of at most maxFrameLength bytes */
+  public XMLDocumentStream(XMLTreeFactory<T> factory, int maxFrameLength)
+  {
+    this(new XMLParser<T>(factory), maxFrameLength);
+  }
+
+  /** Parse the documents with the given parser */
+  public XMLDocumentStream(XMLParser<T> parser)
+  {
+    this(parser, DEFAULT_MAX_FRAME_LENGTH);
+  }
+
+  /** Parse the documents with the given parser, accepting frames of at most maxFrameLength bytes */
+  public XMLDocumentStream(XMLParser<T> parser, int maxFrameLength)
+  {
+    if (maxFrameLength < 0) throw new IllegalArgumentException("Negative maximum frame length: " + maxFrameLength);
+    this.parser         = parser;
+    this.scanner        = new XMLScanner(parser);
+    this.maxFrameLength = maxFrameLength;
+  }
+
+  /** The scanner that reads the documents (it may be configured before a stream is parsed) */
+  public XMLScanner getScanner()
+  {
+    return scanner;
+  }
+
+  /** Parse the concatenated documents read from the given Reader; return the number parsed */
+  public int parse(Reader reader, Consumer<T> consumer)
+  {
+    scanner.setDelimiter(-1);
+    scanner.openStream(reader);
+    return parse(consumer, null);
+  }
+
+  /** Parse the concatenated UTF-8 encoded documents in bytes[position..limit); return the number parsed */
+  public int parse(ByteBuffer bytes, Consumer<T> consumer)
+  {
+    scanner.setDelimiter(-1);
+    scanner.openStream(bytes);
+    return parse(consumer, null);
+  }
+
+  /**
+   * Parse the documents, separated by the given delimiter, read from the given Reader;
+   * return the number parsed (without error).
+   */
+  public int parse(Reader reader, char delimiter, Consumer<T> consumer, Consumer<RuntimeException> errors)
+  {
+    scanner.setDelimiter(delimiter);
+    scanner.openStream(reader);
+    return parse(consumer, errors);
+  }
+
+  /** Parse the documents of the stream that has been opened on the scanner */
+  protected int parse(Consumer<T> consumer, Consumer<RuntimeException> errors)
+  {
+    int count = 0;
+    while (scanner.nextDocument())
+    {
+      try
+      {
+        while (scanner.step()) continue;
+      }
+      catch (RuntimeException ex)
+      {
+        if (errors == null) throw ex;
+        errors.accept(ex);
+        scanner.skipDocument();
+        continue;
+      }
+      count++;
+      consumer.accept(parser.getTree());
+    }
+    return count;
+  }
+
+  /**
+   * Parse the framed documents read from the given InputStream, until it ends;
+   * return the number parsed (without error).
+   */
+  public int parseFramed(InputStream in, Consumer<T> consumer, Consumer<RuntimeException> errors) throws IOException
+  {
+    int count = 0;
+    for (int length = readLength(in); length >= 0; length = readLength(in))
+    {
+      if (frame.length < length) frame = new byte[Math.max(length, (int) Math.min(2L * frame.length, maxFrameLength))];
+      readFully(in, frame, length);
+      try
+      {
+        scanner.read(ByteBuffer.wrap(frame, 0, length));
+      }
+      catch (RuntimeException ex)
+      {
+        if (errors == null) throw ex;
+        errors.accept(ex);
+        continue;
+      }
+      count++;
+      consumer.accept(parser.getTree());
+    }
+    return count;
+  }
+
+  /** The length of the next frame; or -1 if the stream has ended. A length beyond the maximum is an IOException */
+  protected int readLength(InputStream in) throws IOException
+  {
+    int b0 = in.read();
+    if (b0 < 0) return -1;
+    int b1 = in.read(), b2 = in.read(), b3 = in.read();
+    if (b3 < 0) throw new EOFException("Incomplete frame length");
+    int length = b0 << 24 | b1 << 16 | b2 << 8 | b3;
+    if (length < 0) throw new IOException("Malformed frame length: " + length);
+    if (length > maxFrameLength) throw new IOException("Frame length " + length + " exceeds the maximum " + maxFrameLength);
+    return length;
+  }
+
+  protected static void readFully(InputStream in, byte[] bytes, int length) throws IOException
+  {
+    for (int n = 0; n < length; )
+    {
+      int r = in.read(bytes, n, length - n);
+      if (r < 0) throw new EOFException("Incomplete frame: " + n + " of " + length + " bytes");
+      n += r;
+    }
+  }
+}
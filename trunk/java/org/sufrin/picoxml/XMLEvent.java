@@ -0,0 +1,54 @@
+package org.sufrin.picoxml;
+
+import java.util.*;
+
+/**
+ * An XMLEvent is an immutable record of the event at which an XMLCursor was
+ * positioned: unlike the cursor's own text and attributes, it remains valid
+ * after the cursor has moved on. XMLEventPublishers publish XMLEvents.
+ */
+public final class XMLEvent
+{
+  public final XMLCursor.Event     type;
+  /** Name of a START_ELEMENT or END_ELEMENT; otherwise null */
+  public final String              name;
+  /** Attributes of a START_ELEMENT; otherwise empty */
+  public final Map<String, String> attributes;
+  /** Text of a TEXT, COMMENT, PI, or DTD; otherwise null */
+  public final String              text;
+  /** Did a TEXT come from a CDATA section */
+  public final boolean             cdata;
+  /** Line on which the event's last token started */
+  public final int                 line;
+
+  public XMLEvent(XMLCursor.Event type, String name, Map<String, String> attributes, String text, boolean cdata, int line)
+  {
+    this.type       = type;
+    this.name       = name;
+    this.attributes = attributes == null || attributes.isEmpty()
+                    ? Collections.<String, String>emptyMap()
+                    : Collections.unmodifiableMap(new XMLScanner.Attributes(attributes));
+    this.text       = text;
+    this.cdata      = cdata;
+    this.line       = line;
+  }
+
+  /** A record of the event at which the cursor is positioned */
+  public static XMLEvent of(XMLCursor cursor)
+  {
+    return new XMLEvent(cursor.eventType(), cursor.name(), cursor.attributes(), cursor.getText(), cursor.isCDATA(), cursor.lineNumber());
+  }
+
+  public String toString()
+  {
+    switch (type)
+    {
+      case START_ELEMENT: return "<" + name + (attributes.isEmpty() ? "" : attributes.toString()) + ">";
+      case END_ELEMENT:   return "</" + name + ">";
+      case TEXT:          return cdata ? "<![CDATA[" + text + "]]>" : text;
+      case COMMENT:       return "<!--" + text + "-->";
+      case PI:            return "<?" + text + "?>";
+      default:            return type.toString();
+    }
+  }
+}
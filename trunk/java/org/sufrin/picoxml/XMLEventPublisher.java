@@ -0,0 +1,59 @@
+package org.sufrin.picoxml;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.Executor;
+
+/**
+ * An XMLEventPublisher publishes the events of a document, as XMLEvents,
+ * from START_DOCUMENT to END_DOCUMENT: the document is read by an
+ * XMLCursor, which is advanced only when the subscriber has requested another event.
+ */
+public class XMLEventPublisher extends XMLPublisher<XMLEvent>
+{
+  protected final XMLCursor cursor;
+  /** True once the cursor's current event has been published */
+  protected boolean         published;
+
+  /** Publish the events read by the given cursor, starting with its current event */
+  public XMLEventPublisher(XMLCursor cursor, Executor executor)
+  {
+    super(executor);
+    this.cursor = cursor;
+  }
+
+  /** Publish the events of the XML read from the given Reader */
+  public XMLEventPublisher(Reader reader, Executor executor)
+  {
+    this(new XMLCursor(reader), executor);
+  }
+
+  /** Publish the events of the UTF-8 encoded XML in bytes[position..limit) */
+  public XMLEventPublisher(ByteBuffer bytes, Executor executor)
+  {
+    this(new XMLCursor(bytes), executor);
+  }
+
+  /** Publish the events of the UTF-8 encoded XML in the given (memory-mapped) file */
+  public XMLEventPublisher(Path path, Executor executor) throws IOException
+  {
+    this(new XMLCursor(path), executor);
+  }
+
+  protected XMLEvent read()
+  {
+    if (published)
+    {
+      if (!cursor.hasNext()) return null;
+      cursor.next();
+    }
+    published = true;
+    return XMLEvent.of(cursor);
+  }
+
+  protected void close()
+  {
+    cursor.close();
+  }
+}
@@ -0,0 +1,44 @@
+package org.sufrin.picoxml;
+
+import java.util.function.Predicate;
+
+/**
+ * An XMLFilter decides, as soon as an XMLScanner has read the name in an element's 
+ * start tag, what is to become of the element. A skipped element (with all its content)
+ * is passed over by counting brackets: its attributes are not parsed, its entities are not
+ * decoded, its text is not materialized, and the handler is told nothing about it.
+ * Nor is its well-formedness checked, beyond the matching of its brackets.
+ *
+ * @see XMLScanner#setFilter
+ * @see XMLPathFilter
+ */
+public interface XMLFilter
+{
+  public enum Verdict
+  {
+    /** Skip the element and its content */
+    SKIP,
+    /** Deliver the element, and filter each of its child elements */
+    DESCEND,
+    /** Deliver the element and all its content, unfiltered */
+    SELECT
+  }
+
+  /**
+   * The verdict on an element of the given kind whose ancestors' kinds are
+   * ancestors[0..depth) (ancestors[0] is the kind of the root); the array must not be changed.
+   */
+  public Verdict select(String kind, String[] ancestors, int depth);
+
+  /** A filter that skips the elements whose kinds satisfy the given predicate */
+  public static XMLFilter skipping(final Predicate<String> kinds)
+  {
+    return new XMLFilter()
+    {
+      public Verdict select(String kind, String[] ancestors, int depth)
+      {
+        return kinds.test(kind) ? Verdict.SKIP : Verdict.DESCEND;
+      }
+    };
+  }
+}
@@ -0,0 +1,335 @@
+package org.sufrin.picoxml;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * An XMLLazyParser parses a UTF-8 encoded document (of at most 2GB) into an AppTree
+ * whose elements are LazyElements: the subtrees of an element are built only
+ * when they are first needed. Parsing itself is a single fast pass by an
+ * XMLPreScanner that records, in an Index of a few int arrays, where the
+ * content of each element starts and ends, and how the elements nest. When the
+ * subtrees of an element are needed, an XMLScanner reads the text of its
+ * content between its subelements, and just the start tags of its subelements;
+ * the content of those subelements is skipped until they are themselves needed.
+ * <p>
+ * So a program that opens a large document to look at a few of its parts
+ * pays for scanning and building only those parts (and for the pre-scan).
+ * The nesting of tags is checked by the pre-scan; other errors are
+ * reported when the content in which they appear is built.
+ */
+public class XMLLazyParser
+{
+  protected final AppTreeFactory factory;
+  protected XMLScanner.TextMode  textMode;
+  protected boolean              transientText;
+
+  public XMLLazyParser()
+  {
+    this(new AppTreeFactory());
+  }
+
+  /** 
+   * Text, comments and PIs are built by the given factory; text is delivered to it as 
+   * whole runs (<tt>PRESERVE</tt>) if it makes runs of text, and otherwise word by word.
+   */
+  public XMLLazyParser(AppTreeFactory factory)
+  {
+    this(factory, factory.textRuns ? XMLScanner.TextMode.PRESERVE : XMLScanner.TextMode.WORDS);
+  }
+
+  /** Text, comments and PIs are built by the given factory; text is delivered to it as the textMode says */
+  public XMLLazyParser(AppTreeFactory factory, XMLScanner.TextMode textMode)
+  {
+    this.factory  = factory;
+    this.textMode = textMode;
+  }
+
+  /** Deliver text as in the given mode, in the trees of documents parsed from now on: see <tt>XMLScanner.setTextMode</tt> */
+  public void setTextMode(XMLScanner.TextMode textMode)
+  {
+    this.textMode = textMode;
+  }
+
+  /** Scan text as transient views, in documents parsed from now on: see <tt>XMLScanner.setTransientText</tt> */
+  public void setTransientText(boolean transientText)
+  {
+    this.transientText = transientText;
+  }
+
+  /** Should return the coding for &amp;entityname; (as XMLParser.decodeEntity) */
+  public String decodeEntity(String entity)
+  {
+    return null;
+  }
+
+  /** Parse the document in the given file (which is memory-mapped) */
+  public AppElement parse(Path path) throws IOException
+  {
+    try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+    {
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE) throw new IOException(path + " is too large to be parsed lazily");
+      return parse(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+    }
+  }
+
+  /**
+   * Parse the document in bytes[position..limit). The bytes
+   * must not change while the tree is in use.
+   */
+  public AppElement parse(ByteBuffer bytes)
+  {
+    Index index = new Index(bytes.slice());
+    LazyElement root = new LazyElement("", null, index, 0);
+    root.build();
+    return root;
+  }
+
+  /**
+   * The positions of elements in the document, and how they nest: element 0 is the
+   * whole document. Offsets are from the start of the document.
+   */
+  public class Index extends XMLPreScanner
+  {
+    protected final ByteBuffer bytes;
+    /** Number of elements */
+    protected int     count;
+    /** Start and end of each element's content, and the lines on which they appear */
+    protected int[]   contentStart, contentLine, contentEnd;
+    /** End of each element's end tag, and the line on which it appears */
+    protected int[]   end, endLine;
+    protected int[]   firstChild, nextSibling;
+
+    /** The open elements, the last child (so far) of each, and their names */
+    protected int[]    open  = new int[32], last = new int[32];
+    protected byte[][] names = new byte[32][];
+    protected int[]    nameLengths = new int[32];
+    protected int      depth;
+
+    protected final XMLScanner scanner;
+    protected final Builder    builder = new Builder();
+
+    protected Index(ByteBuffer bytes)
+    {
+      this.bytes   = bytes;
+      int capacity = 256;
+      contentStart = new int[capacity];
+      contentLine  = new int[capacity];
+      contentEnd   = new int[capacity];
+      end          = new int[capacity];
+      endLine      = new int[capacity];
+      firstChild   = new int[capacity];
+      nextSibling  = new int[capacity];
+
+      int size = bytes.remaining();
+      newElement(0, 1);
+      push(0);
+      scan(bytes, 0);
+      if (depth > 1)
+        throw new XMLScanner.XMLSyntax(line, String.format("Premature end of document in unclosed <%s>",
+                                                           openName(depth - 1)));
+      if (count == 1) throw new RuntimeException("Document has no elements.");
+      contentEnd[0] = end[0] = size;
+      endLine[0]    = line;
+      scanner       = new XMLScanner(builder);
+      scanner.setTextMode(textMode);
+      scanner.setTransientText(transientText);
+    }
+
+    protected void startTag(long tagStart, long tagEnd, int tagLine, boolean empty)
+    {
+      int e = newElement((int) tagEnd, line);
+      int top = depth - 1;
+      if (last[top] < 0)
+        firstChild[open[top]] = e;
+      else
+        nextSibling[last[top]] = e;
+      last[top] = e;
+      if (empty)
+      {
+        contentEnd[e] = end[e] = (int) tagEnd;
+        endLine[e] = line;
+      }
+      else
+      {
+        push(e);
+        if (names[top + 1] == null || names[top + 1].length < nameLength) names[top + 1] = new byte[Math.max(16, nameLength)];
+        System.arraycopy(name, 0, names[top + 1], 0, nameLength);
+        nameLengths[top + 1] = nameLength;
+      }
+    }
+
+    protected void endTag(long tagStart, long tagEnd, int tagLine)
+    {
+      if (depth == 1)
+        throw new XMLScanner.XMLSyntax(tagLine, String.format("Unexpected </%s>", name()));
+      int top = depth - 1;
+      if (!nameIs(names[top], nameLengths[top]))
+        throw new XMLScanner.XMLSyntax(tagLine, String.format("Non-nested: <%s>...</%s>", openName(top), name()));
+      int e = open[top];
+      contentEnd[e] = (int) tagStart;
+      end[e]        = (int) tagEnd;
+      endLine[e]    = line;
+      depth--;
+    }
+
+    protected boolean nameIs(byte[] aName, int length)
+    {
+      if (length != nameLength) return false;
+      for (int i = 0; i < length; i++)
+        if (name[i] != aName[i]) return false;
+      return true;
+    }
+
+    protected String openName(int d)
+    {
+      return new String(names[d], 0, nameLengths[d], java.nio.charset.StandardCharsets.UTF_8);
+    }
+
+    protected int newElement(int start, int startLine)
+    {
+      if (count == contentStart.length)
+      {
+        int capacity = 2 * count;
+        contentStart = Arrays.copyOf(contentStart, capacity);
+        contentLine  = Arrays.copyOf(contentLine, capacity);
+        contentEnd   = Arrays.copyOf(contentEnd, capacity);
+        end          = Arrays.copyOf(end, capacity);
+        endLine      = Arrays.copyOf(endLine, capacity);
+        firstChild   = Arrays.copyOf(firstChild, capacity);
+        nextSibling  = Arrays.copyOf(nextSibling, capacity);
+      }
+      int e = count++;
+      contentStart[e] = start;
+      contentLine[e]  = startLine;
+      firstChild[e]   = nextSibling[e] = -1;
+      return e;
+    }
+
+    protected void push(int e)
+    {
+      if (depth == open.length)
+      {
+        open        = Arrays.copyOf(open, 2 * depth);
+        last        = Arrays.copyOf(last, 2 * depth);
+        names       = Arrays.copyOf(names, 2 * depth);
+        nameLengths = Arrays.copyOf(nameLengths, 2 * depth);
+      }
+      open[depth] = e;
+      last[depth] = -1;
+      depth++;
+    }
+
+    /** Number of elements in the document */
+    public int size()
+    {
+      return count - 1;
+    }
+
+    /**
+     * Build the subtrees of the given element: scan the text between its
+     * subelements, and the start tags of its subelements.
+     */
+    protected synchronized void build(LazyElement element)
+    {
+      if (element.built) return;
+      int e = element.element, from = contentStart[e], fromLine = contentLine[e];
+      builder.target = element;
+      try
+      {
+        for (int c = firstChild[e]; c >= 0; c = nextSibling[c])
+        {
+          // The text before the child, and the child's start tag
+          builder.child = c;
+          scan(from, contentStart[c], fromLine, e == 0 ? 0 : 1);
+          from     = end[c];
+          fromLine = endLine[c];
+        }
+        builder.child = -1;
+        scan(from, contentEnd[e], fromLine, e == 0 ? 0 : 1);
+        element.built = true;
+      }
+      finally
+      {
+        if (!element.built) element.subtrees.clear();
+        builder.target = null;
+      }
+    }
+
+    /** Scan [from, to), which starts on fromLine, at the given depth: 0 in the prolog, 1 in the content of an element */
+    protected void scan(int from, int to, int fromLine, int depth)
+    {
+      ByteBuffer range = bytes.duplicate();
+      range.limit(to).position(from);
+      scanner.open(range, fromLine, depth);
+      try
+      {
+        while (scanner.step()) continue;
+        // The entities declared by the DOCTYPE (in the prolog) are known in every later range
+        if (depth == 0) scanner.setEntityTable(scanner.getDocumentEntities());
+      }
+      finally
+      {
+        scanner.close();
+      }
+    }
+
+    /** Adds the trees scanned from a range of the document to the element whose subtrees are being built */
+    protected class Builder implements XMLHandler
+    {
+      LazyElement target;
+      /** The subelement whose start tag ends the range being scanned; or -1 */
+      int         child;
+
+      public void startElement(String kind, Map<String, String> atts)
+      {
+        if (child < 0) throw new RuntimeException(String.format("Unexpected <%s>", kind));
+        target.subtrees.add(new LazyElement(kind, atts, Index.this, child));
+        child = -1;
+      }
+
+      /** Called only for subelements of the form &lt;kind .../> */
+      public void endElement(String kind)
+      {
+      }
+
+      public void acceptComment(CharSequence text)
+      {
+        if (factory.canComment()) target.subtrees.add(factory.newComment(text.toString()));
+      }
+
+      public void acceptDTD(CharSequence text)
+      {
+        if (factory.canDTD()) target.subtrees.add(factory.newDTD(text.toString()));
+      }
+
+      public void acceptPI(CharSequence text)
+      {
+        if (factory.canPI()) target.subtrees.add(factory.newPI(text.toString()));
+      }
+
+      public void acceptPCDATA(CharSequence text, boolean cdata)
+      {
+        target.subtrees.add(factory.newPCData(text.toString(), cdata));
+      }
+
+      public void startDocument()
+      {
+      }
+
+      public void endDocument()
+      {
+      }
+
+      public String decodeEntity(String entity)
+      {
+        return XMLLazyParser.this.decodeEntity(entity);
+      }
+    }
+  }
+}
@@ -0,0 +1,410 @@
+package org.sufrin.picoxml;
+
+import java.util.*;
+import jdk.jfr.*;
+
+/**
+ * An XMLMetrics counts what a scanner does as it reads documents: the characters
+ * (and bytes) it consumes, its tokens by type, the elements and attributes it delivers
+ * (and the elements its filter skips), the entities it expands, the maximum depth of nesting, and
+ * the wall time taken by each document. The counts accumulate, over all the documents
+ * read, until <tt>reset</tt>.
+ * <p>
+ * Metrics are opt-in: a scanner counts only when it has been given an XMLMetrics
+ * (by <tt>setMetrics</tt>), and otherwise does no more than test that it has none.
+ * A handler wrapped by <tt>timed</tt> is timed too: the time spent in its callbacks
+ * is counted, and callbacks that take longer than a threshold are counted as slow.
+ * <p>
+ * When a JDK Flight Recorder recording is running, the scanner's metrics also commit
+ * a <tt>org.sufrin.picoxml.Parse</tt> event for each document, and a timed handler commits a
+ * <tt>org.sufrin.picoxml.SlowCallback</tt> event for each slow callback.
+ * An XMLMetrics is not thread-safe: it should count for one scanner at a time, and be read from its thread.
+ */
+public class XMLMetrics
+{
+  /** A document parse, recorded by JFR */
+  @Name("org.sufrin.picoxml.Parse")
+  @Label("XML Document Parse")
+  @Category("PicoXML")
+  @Description("A document read by an XMLScanner")
+  static final class ParseEvent extends Event
+  {
+    @Label("Characters")
+    long chars;
+
+    @Label("Bytes")
+    @DataAmount
+    long bytes;
+
+    @Label("Elements")
+    long elements;
+
+    @Label("Attributes")
+    long attributes;
+
+    @Label("Entity Expansions")
+    long entities;
+
+    @Label("Maximum Depth")
+    int  depth;
+  }
+
+  /** A handler callback that took longer than the threshold, recorded by JFR */
+  @Name("org.sufrin.picoxml.SlowCallback")
+  @Label("Slow XML Handler Callback")
+  @Category("PicoXML")
+  @Description("A callback of an XMLHandler that took longer than its metrics' threshold")
+  static final class CallbackEvent extends Event
+  {
+    @Label("Callback")
+    String callback;
+
+    @Label("Element Kind")
+    String kind;
+
+    @Label("Callback Time")
+    @Timespan(Timespan.NANOSECONDS)
+    long   nanos;
+  }
+
+  /** Names of the scanner's token types (<tt>WORD</tt>, <tt>CDATA</tt>, <tt>COMMENT</tt>, ...): tokens[i] counts those named names[i] */
+  protected static final String[] names = XMLScanner.tokenNames();
+
+  protected final long[] tokens = new long[names.length];
+  protected long         chars, bytes, elements, attributes, skipped, entities;
+  protected int          maxDepth;
+
+  /** Documents completed, and their total, longest, and most recent wall times */
+  protected long         documents, totalNanos, maxNanos, lastNanos;
+
+  /** Callbacks of timed handlers: how many, how many were slow, and their total time */
+  protected long         callbacks, slowCallbacks, callbackNanos;
+  /** A callback is slow if it takes longer than this */
+  protected long         slowNanos = 1000000;
+
+  /** The state of the current document (if one has started) */
+  protected long         startNanos = -1, startChars, startBytes, startElements, startAttributes, startEntities;
+  protected int          depth;
+  protected ParseEvent   event;
+
+  /**
+   * The counts of tokens, entities and skipped elements at a point in the input, saved by a scanner being fed:
+   * if it rescans from that point, it restores them, so nothing is counted twice.
+   */
+  static final class Counts
+  {
+    final long[] tokens = new long[names.length];
+    long         skipped, entities;
+  }
+
+  /** Zero all the counts */
+  public void reset()
+  {
+    Arrays.fill(tokens, 0);
+    chars = bytes = elements = attributes = skipped = entities = 0;
+    maxDepth = depth = 0;
+    documents = totalNanos = maxNanos = lastNanos = 0;
+    callbacks = slowCallbacks = callbackNanos = 0;
+    startNanos = -1;
+    event      = null;
+  }
+
+  /** Count callbacks of timed handlers that take longer than the given number of nanoseconds as slow */
+  public void setSlowCallbackNanos(long nanos)
+  {
+    slowNanos = nanos;
+  }
+
+  // Counting (by the scanner)
+
+  void startDocument()
+  {
+    startNanos      = System.nanoTime();
+    startChars      = chars;
+    startBytes      = bytes;
+    startElements   = elements;
+    startAttributes = attributes;
+    startEntities   = entities;
+    depth           = 0;
+    event           = new ParseEvent();
+    if (event.isEnabled())
+      event.begin();
+    else
+      event = null;
+  }
+
+  void endDocument()
+  {
+    if (startNanos < 0) return;
+    long nanos = System.nanoTime() - startNanos;
+    startNanos  = -1;
+    documents++;
+    totalNanos += nanos;
+    lastNanos   = nanos;
+    if (nanos > maxNanos) maxNanos = nanos;
+    if (event != null)
+    { event.end();
+      if (event.shouldCommit())
+      { event.chars      = chars - startChars;
+        event.bytes      = bytes - startBytes;
+        event.elements   = elements - startElements;
+        event.attributes = attributes - startAttributes;
+        event.entities   = entities - startEntities;
+        event.depth      = depth;
+        event.commit();
+      }
+      event = null;
+    }
+  }
+
+  void token(int type)
+  {
+    tokens[type]++;
+  }
+
+  void save(Counts counts)
+  {
+    System.arraycopy(tokens, 0, counts.tokens, 0, tokens.length);
+    counts.skipped  = skipped;
+    counts.entities = entities;
+  }
+
+  void restore(Counts counts)
+  {
+    System.arraycopy(counts.tokens, 0, tokens, 0, tokens.length);
+    skipped  = counts.skipped;
+    entities = counts.entities;
+  }
+
+  /** An element, at the given depth (from 1), with the given number of attributes */
+  void element(int depth, int atts)
+  {
+    elements++;
+    attributes += atts;
+    if (depth > this.depth) this.depth = depth;
+    if (depth > maxDepth)   maxDepth   = depth;
+  }
+
+  // The counts
+
+  /** Characters read into the scanner (from a Reader, or decoded from bytes) */
+  public long getChars()
+  {
+    return chars;
+  }
+
+  /** Bytes decoded by the scanner (from a ByteBuffer, a file, or fed) */
+  public long getBytes()
+  {
+    return bytes;
+  }
+
+  /** The number of tokens of each type */
+  public Map<String, Long> getTokens()
+  {
+    Map<String, Long> result = new LinkedHashMap<String, Long>();
+    for (int i = 0; i < names.length; i++) result.put(names[i], tokens[i]);
+    return result;
+  }
+
+  /** The number of tokens of the given type (as named in <tt>getTokens</tt>) */
+  public long getTokens(String name)
+  {
+    for (int i = 0; i < names.length; i++)
+      if (names[i].equals(name)) return tokens[i];
+    throw new IllegalArgumentException("No such token type: " + name);
+  }
+
+  /** Elements delivered to the handler */
+  public long getElements()
+  {
+    return elements;
+  }
+
+  /** Attributes of the elements delivered to the handler */
+  public long getAttributes()
+  {
+    return attributes;
+  }
+
+  /** Elements skipped (with their content) at the behest of the scanner's filter */
+  public long getSkipped()
+  {
+    return skipped;
+  }
+
+  /** Entity references expanded */
+  public long getEntities()
+  {
+    return entities;
+  }
+
+  /** Sections of CDATA: each is delivered as a String of its own */
+  public long getCDATA()
+  {
+    return getTokens("CDATA");
+  }
+
+  /** Comments: each is delivered as a String of its own */
+  public long getComments()
+  {
+    return getTokens("COMMENT");
+  }
+
+  /** The greatest depth of element nesting */
+  public int getMaxDepth()
+  {
+    return maxDepth;
+  }
+
+  /** Documents read completely */
+  public long getDocuments()
+  {
+    return documents;
+  }
+
+  /** Total wall time of the documents read completely */
+  public long getTotalNanos()
+  {
+    return totalNanos;
+  }
+
+  /** Wall time of the longest document read */
+  public long getMaxNanos()
+  {
+    return maxNanos;
+  }
+
+  /** Wall time of the most recent document read completely */
+  public long getLastNanos()
+  {
+    return lastNanos;
+  }
+
+  /** Callbacks made to timed handlers */
+  public long getCallbacks()
+  {
+    return callbacks;
+  }
+
+  /** Callbacks made to timed handlers that were slow */
+  public long getSlowCallbacks()
+  {
+    return slowCallbacks;
+  }
+
+  /** Total time spent in the callbacks of timed handlers */
+  public long getCallbackNanos()
+  {
+    return callbackNanos;
+  }
+
+  public String toString()
+  {
+    StringBuilder b = new StringBuilder();
+    b.append(String.format("documents %d (%.3fms, longest %.3fms), chars %d, bytes %d, elements %d, attributes %d, skipped %d, entities %d, depth %d",
+                           documents, totalNanos / 1e6, maxNanos / 1e6, chars, bytes, elements, attributes, skipped, entities, maxDepth));
+    if (callbacks > 0)
+      b.append(String.format(", callbacks %d (%.3fms, slow %d)", callbacks, callbackNanos / 1e6, slowCallbacks));
+    b.append(", tokens {");
+    String sep = "";
+    for (int i = 0; i < names.length; i++)
+      if (tokens[i] > 0)
+      { b.append(sep).append(names[i]).append(": ").append(tokens[i]);
+        sep = ", ";
+      }
+    return b.append('}').toString();
+  }
+
+  /**
+   * A handler that delegates to the given handler, timing its callbacks: install
+   * it in the scanner (that counts with these metrics) in place of the given handler.
+   */
+  public XMLHandler timed(final XMLHandler handler)
+  {
+    return new XMLHandler()
+    {
+      /** Finish timing a callback that started at the given time */
+      void timed(long start, String callback, String kind)
+      {
+        long nanos = System.nanoTime() - start;
+        callbacks++;
+        callbackNanos += nanos;
+        if (nanos > slowNanos)
+        { slowCallbacks++;
+          CallbackEvent e = new CallbackEvent();
+          if (e.isEnabled())
+          { e.callback = callback;
+            e.kind     = kind;
+            e.nanos    = nanos;
+            e.commit();
+          }
+        }
+      }
+
+      public void startDocument()
+      {
+        long start = System.nanoTime();
+        handler.startDocument();
+        timed(start, "startDocument", null);
+      }
+
+      public void endDocument()
+      {
+        long start = System.nanoTime();
+        handler.endDocument();
+        timed(start, "endDocument", null);
+      }
+
+      public void startElement(String kind, Map<String, String> atts)
+      {
+        long start = System.nanoTime();
+        handler.startElement(kind, atts);
+        timed(start, "startElement", kind);
+      }
+
+      public void endElement(String kind)
+      {
+        long start = System.nanoTime();
+        handler.endElement(kind);
+        timed(start, "endElement", kind);
+      }
+
+      public void acceptPCDATA(CharSequence text, boolean cdata)
+      {
+        long start = System.nanoTime();
+        handler.acceptPCDATA(text, cdata);
+        timed(start, "acceptPCDATA", null);
+      }
+
+      public void acceptComment(CharSequence text)
+      {
+        long start = System.nanoTime();
+        handler.acceptComment(text);
+        timed(start, "acceptComment", null);
+      }
+
+      public void acceptPI(CharSequence text)
+      {
+        long start = System.nanoTime();
+        handler.acceptPI(text);
+        timed(start, "acceptPI", null);
+      }
+
+      public void acceptDTD(CharSequence text)
+      {
+        long start = System.nanoTime();
+        handler.acceptDTD(text);
+        timed(start, "acceptDTD", null);
+      }
+
+      public String decodeEntity(String entity)
+      {
+        long start = System.nanoTime();
+        String d = handler.decodeEntity(entity);
+        timed(start, "decodeEntity", entity);
+        return d;
+      }
+    };
+  }
+}
@@ -0,0 +1,316 @@
+package org.sufrin.picoxml;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * An XMLParallelParser&lt;T> parses a single large UTF-8 encoded document
+ * into a tree of type <tt>T</tt> using several threads. It suits documents
+ * that are essentially a long list of similar children of one element
+ * (record dumps): the <i>split element</i>.
+ * <p>
+ * An XMLPreScanner first finds the split element (the first element with
+ * the given name), and the boundaries between its children.
+ * The text before the children is parsed by the main XMLParser; then the
+ * children are parsed in chunks of about <tt>chunkSize</tt> bytes,
+ * concurrently, by separate XMLParsers (whose scanners know the entities declared by the 
+ * document's DOCTYPE); while the text after the children is parsed by the main XMLParser.
+ * The subtrees from the chunks are finally added, in
+ * document order, to the split element's Composite. Each chunk's scanner starts
+ * counting lines at the line on which the chunk starts, so
+ * the line numbers in XMLSyntax errors are those of the whole document.
+ * <p>
+ * If there is no (non-empty) split element the document is parsed
+ * by a single thread. The factory must be safe to use from many threads
+ * (AppTreeFactory is).
+ */
+public class XMLParallelParser<T>
+{
+  /** Default (approximate) size of the chunks parsed concurrently */
+  public static final long CHUNK_SIZE = 4 << 20;
+
+  protected final XMLTreeFactory<T> factory;
+  protected final Executor          executor;
+  protected final String            splitName;
+  protected final byte[]            split;
+  protected final long              chunkSize;
+  protected final SymbolTable       symbols = new SymbolTable();
+
+  public XMLParallelParser(XMLTreeFactory<T> factory, Executor executor, String splitName)
+  {
+    this(factory, executor, splitName, CHUNK_SIZE);
+  }
+
+  /** Split the children of the first element named splitName into chunks of about chunkSize bytes */
+  public XMLParallelParser(XMLTreeFactory<T> factory, Executor executor, String splitName, long chunkSize)
+  {
+    this.factory   = factory;
+    this.executor  = executor;
+    this.splitName = splitName;
+    this.split     = XMLPreScanner.encode(splitName);
+    this.chunkSize = chunkSize;
+  }
+
+  /** Parse the document in the given file (which is memory-mapped) */
+  public T parse(Path path) throws IOException
+  {
+    try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+    {
+      Splitter splitter = new Splitter();
+      splitter.scan(channel);
+      if (!splitter.isStopped())
+      {
+        XMLParser<T> parser = newParser();
+        newScanner(parser).read(path);
+        return parser.getTree();
+      }
+      return parse(splitter, channel.size(), new Source()
+      {
+        public ByteBuffer range(long from, long to) throws IOException
+        {
+          return channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+        }
+      });
+    }
+  }
+
+  /** Parse the document in bytes[position..limit) */
+  public T parse(ByteBuffer bytes)
+  {
+    final ByteBuffer all = bytes.slice();
+    Splitter splitter = new Splitter();
+    splitter.scan(all, 0);
+    if (!splitter.isStopped())
+    {
+      XMLParser<T> parser = newParser();
+      newScanner(parser).read(all);
+      return parser.getTree();
+    }
+    try
+    {
+      return parse(splitter, all.limit(), new Source()
+      {
+        public ByteBuffer range(long from, long to)
+        {
+          ByteBuffer b = all.duplicate();
+          b.limit((int) to).position((int) from);
+          return b.slice();
+        }
+      });
+    }
+    catch (IOException ex)
+    {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  /** Yields the bytes of a part of the document */
+  protected interface Source
+  {
+    ByteBuffer range(long from, long to) throws IOException;
+  }
+
+  protected T parse(Splitter splitter, long size, Source source) throws IOException
+  {
+    Stitcher     main    = new Stitcher();
+    XMLScanner   scanner = newScanner(main);
+    try
+    {
+      // The text before the children: its DOCTYPE may declare entities used in the chunks
+      scanner.open(source.range(0, splitter.contentStart));
+      main.holding = true;
+      while (scanner.step()) continue;
+      if (main.kinds.size() < 2 || !main.kinds.peek().equals(splitName))
+        throw new RuntimeException(String.format("Split element <%s> not open after its start tag", splitName));
+      final EntityTable entities = scanner.getDocumentEntities();
+
+      List<CompletableFuture<List<T>>> chunks = new ArrayList<CompletableFuture<List<T>>>();
+      for (int i = 0; i + 1 < splitter.bounds.size(); i++)
+      {
+        final ByteBuffer bytes = source.range(splitter.bounds.get(i), splitter.bounds.get(i + 1));
+        final int        line  = splitter.lines.get(i);
+        chunks.add(CompletableFuture.supplyAsync(new java.util.function.Supplier<List<T>>()
+        {
+          public List<T> get()
+          {
+            return parseChunk(bytes, line, entities);
+          }
+        }, executor));
+      }
+
+      Composite<T> parent = main.stack.peek();
+      for (CompletableFuture<List<T>> chunk : chunks)
+        for (T tree : join(chunk)) parent.addTree(tree);
+      scanner.open(source.range(splitter.contentEnd, size), splitter.contentEndLine);
+      scanner.setEntityTable(entities);
+      main.holding = false;
+      while (scanner.step()) continue;
+    }
+    finally
+    {
+      scanner.close();
+    }
+    return main.getTree();
+  }
+
+  /** Parse a chunk of the split element's content, in which the given entities are known, yielding the trees it contains */
+  protected List<T> parseChunk(ByteBuffer bytes, int line, EntityTable entities)
+  {
+    Fragment   fragment = new Fragment();
+    XMLScanner scanner  = newScanner(fragment);
+    scanner.setEntityTable(entities);
+    scanner.open(bytes, line);
+    try
+    {
+      while (scanner.step()) continue;
+    }
+    finally
+    {
+      scanner.close();
+    }
+    return fragment.trees;
+  }
+
+  protected List<T> join(CompletableFuture<List<T>> chunk)
+  {
+    try
+    {
+      return chunk.join();
+    }
+    catch (CompletionException ex)
+    {
+      Throwable cause = ex.getCause();
+      if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+      if (cause instanceof Error) throw (Error) cause;
+      throw ex;
+    }
+  }
+
+  protected XMLParser<T> newParser()
+  {
+    return new XMLParser<T>(factory);
+  }
+
+  protected XMLScanner newScanner(XMLHandler handler)
+  {
+    XMLScanner scanner = new XMLScanner(handler);
+    scanner.setSymbolTable(symbols);
+    return scanner;
+  }
+
+  /**
+   * The main parser: while <tt>holding</tt> it ignores the end of the text before
+   * the split element's children and the start of the text after them.
+   */
+  protected class Stitcher extends XMLParser<T>
+  {
+    boolean holding;
+
+    Stitcher()
+    {
+      super(XMLParallelParser.this.factory);
+    }
+
+    public void startDocument()
+    {
+      if (!holding) super.startDocument();
+    }
+
+    public void endDocument()
+    {
+      if (!holding) super.endDocument();
+    }
+  }
+
+  /** A chunk parser: it collects the trees at the outermost level of its text */
+  protected class Fragment extends XMLParser<T>
+  {
+    final List<T> trees = new ArrayList<T>();
+
+    Fragment()
+    {
+      super(XMLParallelParser.this.factory);
+    }
+
+    public void startDocument()
+    {
+      stack.clear();
+      kinds.clear();
+      trees.clear();
+      stack.push(new Composite<T>()
+      {
+        public void addTree(T tree)
+        {
+          trees.add(tree);
+        }
+
+        public T close()
+        {
+          return null;
+        }
+      });
+      kinds.push("");
+    }
+  }
+
+  /**
+   * Finds the split element, and the boundaries of the chunks of its
+   * content: <tt>bounds</tt> runs from the start of its content to the start of its end tag;
+   * <tt>lines[i]</tt> is the line on which the chunk starting at <tt>bounds[i]</tt> starts.
+   * It stops when the split element ends.
+   */
+  protected class Splitter extends XMLPreScanner
+  {
+    boolean          found;
+    int              splitDepth, contentEndLine;
+    long             contentStart, contentEnd, last;
+    final List<Long>    bounds = new ArrayList<Long>();
+    final List<Integer> lines  = new ArrayList<Integer>();
+
+    protected void startTag(long tagStart, long tagEnd, int tagLine, boolean empty)
+    {
+      if (!found)
+      {
+        if (!empty && nameIs(split))
+        {
+          found        = true;
+          splitDepth   = depth;
+          contentStart = last = tagEnd;
+          bounds.add(tagEnd);
+          lines.add(line);
+        }
+      }
+      else if (empty && depth == splitDepth)
+        boundary(tagEnd);
+    }
+
+    protected void endTag(long tagStart, long tagEnd, int tagLine)
+    {
+      if (!found) return;
+      if (depth == splitDepth)
+        boundary(tagEnd);
+      else if (depth == splitDepth - 1)
+      {
+        contentEnd     = tagStart;
+        contentEndLine = tagLine;
+        bounds.add(tagStart);
+        stopped = true;
+      }
+    }
+
+    void boundary(long tagEnd)
+    {
+      if (tagEnd - last >= chunkSize)
+      {
+        bounds.add(tagEnd);
+        lines.add(line);
+        last = tagEnd;
+      }
+    }
+  }
+}
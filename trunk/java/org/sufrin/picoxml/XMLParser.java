@@ -20,15 +20,22 @@ public class XMLParser<T> implements XMLHandler
   
   /** Close the current topmost element if it is
    *  of the given kind, and add it to its parent element.
+   *  (Names from a scanner's symbol table can usually be compared by identity.)
    */
   public void endElement(String kind) 
   { String tkind = kinds.pop();    
-    if (tkind.equals(kind))
-       { T top=stack.pop().close(); stack.peek().addTree(top); }
+    if (tkind == kind || tkind.equals(kind))
+       { T top=stack.pop().close(); closed(tkind, top); }
     else 
        throw new RuntimeException(String.format("Non-nested: <%s>...</%s>", tkind, kind));
   }
   
+  /** Called when an element of the given kind has been closed 
+   *  (<tt>kinds</tt> then holds the kinds of its ancestors): add it to its parent element.
+   */
+  protected void closed(String kind, T tree)
+  { stack.peek().addTree(tree); }
+  
   /** The root tree after the last endDocument() */
   protected T theTree = null;
   /** Return the root tree */
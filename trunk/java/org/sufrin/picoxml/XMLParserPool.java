@@ -0,0 +1,131 @@
+package org.sufrin.picoxml;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An XMLParserPool&lt;T> parses documents into trees of type <tt>T</tt>,
+ * drawing an XMLScanner/XMLParser pair from a pool for each document, and
+ * returning it to the pool afterwards; so the scanners' buffers
+ * are reused from one document to the next. A pool may be used by many threads at once:
+ * its scanners share a single SymbolTable, and its factory must be safe
+ * to use from many threads (AppTreeFactory is).
+ */
+public class XMLParserPool<T>
+{
+  /** A scanner and the parser it drives */
+  protected static class Worker<T>
+  {
+    final XMLParser<T> parser;
+    final XMLScanner   scanner;
+
+    Worker(XMLParser<T> parser, XMLScanner scanner)
+    {
+      this.parser  = parser;
+      this.scanner = scanner;
+    }
+  }
+
+  protected final XMLTreeFactory<T> factory;
+  protected final SymbolTable       symbols = new SymbolTable();
+  protected final ConcurrentLinkedQueue<Worker<T>> idle = new ConcurrentLinkedQueue<Worker<T>>();
+  /** Number of workers in <tt>idle</tt> */
+  protected final AtomicInteger idleCount = new AtomicInteger();
+  /** Maximum number of idle workers kept */
+  protected final int maxIdle;
+
+  public XMLParserPool(XMLTreeFactory<T> factory)
+  {
+    this(factory, 2 * Runtime.getRuntime().availableProcessors());
+  }
+
+  /** A pool that keeps at most maxIdle scanner/parser pairs for reuse */
+  public XMLParserPool(XMLTreeFactory<T> factory, int maxIdle)
+  {
+    this.factory = factory;
+    this.maxIdle = maxIdle;
+  }
+
+  /** Make a new scanner/parser pair: override to configure them */
+  protected Worker<T> newWorker()
+  {
+    XMLParser<T> parser  = new XMLParser<T>(factory);
+    XMLScanner   scanner = new XMLScanner(parser);
+    scanner.setSymbolTable(symbols);
+    return new Worker<T>(parser, scanner);
+  }
+
+  protected Worker<T> acquire()
+  {
+    Worker<T> worker = idle.poll();
+    if (worker == null) return newWorker();
+    idleCount.decrementAndGet();
+    return worker;
+  }
+
+  protected void release(Worker<T> worker)
+  {
+    worker.parser.theTree = null;
+    worker.parser.stack.clear();
+    worker.parser.kinds.clear();
+    if (idleCount.incrementAndGet() <= maxIdle)
+      idle.offer(worker);
+    else
+      idleCount.decrementAndGet();
+  }
+
+  /** Parse the document read from the given Reader (which is closed afterwards) */
+  public T parse(Reader reader)
+  {
+    Worker<T> worker = acquire();
+    try
+    {
+      worker.scanner.read(reader);
+      return worker.parser.getTree();
+    }
+    finally
+    {
+      release(worker);
+    }
+  }
+
+  /** Parse the UTF-8 encoded document read from the given stream (which is closed afterwards) */
+  public T parse(InputStream stream)
+  {
+    return parse(new InputStreamReader(stream, StandardCharsets.UTF_8));
+  }
+
+  /** Parse the UTF-8 encoded document in bytes[position..limit) */
+  public T parse(ByteBuffer bytes)
+  {
+    Worker<T> worker = acquire();
+    try
+    {
+      worker.scanner.read(bytes);
+      return worker.parser.getTree();
+    }
+    finally
+    {
+      release(worker);
+    }
+  }
+
+  /** Parse the UTF-8 encoded document in the given (memory-mapped) file */
+  public T parse(Path path) throws IOException
+  {
+    Worker<T> worker = acquire();
+    try
+    {
+      worker.scanner.read(path);
+      return worker.parser.getTree();
+    }
+    finally
+    {
+      release(worker);
+    }
+  }
+}
@@ -0,0 +1,62 @@
+package org.sufrin.picoxml;
+
+/**
+ * An XMLPathFilter selects the elements that match any of a set of paths, 
+ * and skips everything except their ancestors. Paths are as for an
+ * XMLRecordParser: a path that starts with '/' is anchored at the root of the
+ * document, so only the elements along it need be scanned; an unanchored path can match
+ * at any depth, so elements that do not match it are descended into rather than skipped.
+ * <p>
+ * The text, comments and PIs in the ancestors of selected elements are delivered as usual.
+ */
+public class XMLPathFilter implements XMLFilter
+{
+  protected final String[][] paths;
+  protected final boolean[]  anchored;
+
+  public XMLPathFilter(String... paths)
+  {
+    this.paths    = new String[paths.length][];
+    this.anchored = new boolean[paths.length];
+    for (int i = 0; i < paths.length; i++)
+    {
+      String path = paths[i];
+      anchored[i]    = path.startsWith("/");
+      this.paths[i]  = (anchored[i] ? path.substring(1) : path).split("/");
+      for (String name : this.paths[i])
+        if (name.length() == 0) throw new IllegalArgumentException("Malformed path: " + path);
+    }
+  }
+
+  public Verdict select(String kind, String[] ancestors, int depth)
+  {
+    Verdict verdict = Verdict.SKIP;
+    for (int i = 0; i < paths.length; i++)
+    {
+      Verdict v = anchored[i] ? selectAnchored(paths[i], kind, ancestors, depth) 
+                              : selectUnanchored(paths[i], kind, ancestors, depth);
+      if (v == Verdict.SELECT) return v;
+      if (v == Verdict.DESCEND) verdict = v;
+    }
+    return verdict;
+  }
+
+  /** The element is selected if it is at the end of the path, and descended into if it is on it */
+  protected static Verdict selectAnchored(String[] path, String kind, String[] ancestors, int depth)
+  {
+    if (depth >= path.length || !XMLRecordParser.matches(path[depth], kind)) return Verdict.SKIP;
+    for (int i = 0; i < depth; i++)
+      if (!XMLRecordParser.matches(path[i], ancestors[i])) return Verdict.SKIP;
+    return depth == path.length - 1 ? Verdict.SELECT : Verdict.DESCEND;
+  }
+
+  /** The element is selected if it and its closest ancestors match the path; otherwise descended into */
+  protected static Verdict selectUnanchored(String[] path, String kind, String[] ancestors, int depth)
+  {
+    int n = path.length;
+    if (depth < n - 1 || !XMLRecordParser.matches(path[n - 1], kind)) return Verdict.DESCEND;
+    for (int i = n - 2, top = depth - 1; i >= 0; i--, top--)
+      if (!XMLRecordParser.matches(path[i], ancestors[top])) return Verdict.DESCEND;
+    return Verdict.SELECT;
+  }
+}
@@ -0,0 +1,260 @@
+package org.sufrin.picoxml;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * An XMLPreScanner makes a fast pass over UTF-8 encoded XML, finding
+ * where its element tags start and end (and on what lines), without
+ * decoding, tokenizing, or materializing anything else. It passes over comments,
+ * CDATA sections, PIs, DOCTYPEs, and quoted attribute values, so the
+ * brackets within them are not mistaken for tags; but it does no
+ * other checking: the text between the tags it reports is left for an XMLScanner.
+ * <p>
+ * The input may be presented in several consecutive buffers (for
+ * example the successive mapped regions of a large file), since the
+ * state of the pre-scan is kept between calls of <tt>scan</tt>.
+ * Offsets reported to the hooks are relative to the start of the whole input.
+ */
+public abstract class XMLPreScanner
+{
+  /** States of the bracket-level automaton */
+  protected static final int CONTENT = 0, LT = 1, STARTNAME = 2, ATTRS = 3, QUOTE = 4, SLASH = 5, ENDNAME = 6,
+                             PI = 7, BANG = 8, COMMENT = 9, CDATA = 10, DOCTYPE = 11;
+
+  protected int state = CONTENT;
+
+  /** Current line number: one more than the number of newlines so far */
+  protected int line = 1;
+
+  /** Number of elements open */
+  protected int depth;
+
+  /** Offset and line of the '&lt;' that opened the current tag */
+  protected long tagStart;
+  protected int  tagLine;
+
+  /** The name of the current tag: name[0..nameLength) */
+  protected byte[] name = new byte[64];
+  protected int    nameLength;
+
+  /** Closing quote of the current attribute value */
+  protected int quote;
+
+  /** Bytes since the body of a comment, CDATA, or PI began; and the last two bytes of that body */
+  protected int  body, last1, last2;
+
+  /** Nesting of brackets within a DOCTYPE */
+  protected int  nesting;
+
+  /** When set (by a hook), scanning stops at the end of the current tag */
+  protected boolean stopped;
+
+  /**
+   * Called at the end of a start tag that spans [tagStart, tagEnd), which
+   * started on tagLine. When empty (&lt;kind .../>) depth is unchanged; otherwise
+   * it includes the element that has just started.
+   */
+  protected abstract void startTag(long tagStart, long tagEnd, int tagLine, boolean empty);
+
+  /**
+   * Called at the end of an end tag that spans [tagStart, tagEnd), which started
+   * on tagLine. The depth no longer includes the element that has just ended.
+   */
+  protected abstract void endTag(long tagStart, long tagEnd, int tagLine);
+
+  /** Is the name of the current tag the given name */
+  protected boolean nameIs(byte[] aName)
+  {
+    if (aName.length != nameLength) return false;
+    for (int i = 0; i < nameLength; i++)
+      if (name[i] != aName[i]) return false;
+    return true;
+  }
+
+  /** The name of the current tag */
+  protected String name()
+  {
+    return new String(name, 0, nameLength, StandardCharsets.UTF_8);
+  }
+
+  /** The UTF-8 encoding of a name, for use with <tt>nameIs</tt> */
+  public static byte[] encode(String name)
+  {
+    return name.getBytes(StandardCharsets.UTF_8);
+  }
+
+  /** Has a hook stopped the scan */
+  public boolean isStopped()
+  {
+    return stopped;
+  }
+
+  /** Current line number */
+  public int lineNumber()
+  {
+    return line;
+  }
+
+  /**
+   * Scan a file, mapping it region by region; stop early if a hook
+   * sets <tt>stopped</tt>.
+   */
+  public void scan(FileChannel channel) throws IOException
+  {
+    long size = channel.size();
+    for (long base = 0; base < size && !stopped; base += XMLScanner.REGION_SIZE)
+      scan(channel.map(FileChannel.MapMode.READ_ONLY, base, Math.min(size - base, XMLScanner.REGION_SIZE)), base);
+  }
+
+  /**
+   * Scan bytes[position..limit), which appear at offset <tt>base</tt> in
+   * the whole input, continuing from where the last scan left off.
+   * Returns the number of bytes scanned (fewer than are
+   * available only if a hook stopped the scan).
+   */
+  public int scan(ByteBuffer bytes, long base)
+  {
+    final int start = bytes.position(), lim = bytes.limit();
+    int p = start;
+    while (p < lim && !stopped)
+    {
+      int b = bytes.get(p) & 0xFF;
+      if (b == '\n') line++;
+      switch (state)
+      {
+        case CONTENT:
+        {
+          // The bulk of most documents: look for the next '<'
+          int l = line;
+          while (b != '<')
+          {
+            if (++p == lim)
+            {
+              line = l;
+              return p - start;
+            }
+            b = bytes.get(p);
+            if (b == '\n') l++;
+          }
+          line = l;
+          tagStart = base + p;
+          tagLine  = line;
+          state = LT;
+        }
+        break;
+
+        case LT:
+          nameLength = 0;
+          if (b == '/')
+            state = ENDNAME;
+          else if (b == '?')
+          {
+            state = PI;
+            body  = last1 = 0;
+          }
+          else if (b == '!')
+            state = BANG;
+          else if (b > ' ')
+          {
+            state = STARTNAME;
+            addName(b);
+          }
+        break;
+
+        case STARTNAME:
+          if (b == '>')
+            startTag(base + p + 1, false);
+          else if (b == '/')
+            state = SLASH;
+          else if (b <= ' ')
+            state = nameLength == 0 ? STARTNAME : ATTRS;
+          else addName(b);
+        break;
+
+        case ATTRS:
+          if (b == '>')
+            startTag(base + p + 1, false);
+          else if (b == '/')
+            state = SLASH;
+          else if (b == '"' || b == '\'')
+          {
+            quote = b;
+            state = QUOTE;
+          }
+        break;
+
+        case QUOTE:
+          if (b == quote) state = ATTRS;
+        break;
+
+        case SLASH:
+          if (b == '>')
+            startTag(base + p + 1, true);
+          else
+            state = ATTRS;
+        break;
+
+        case ENDNAME:
+          if (b == '>')
+          {
+            depth--;
+            state = CONTENT;
+            endTag(tagStart, base + p + 1, tagLine);
+          }
+          else if (b > ' ') addName(b);
+        break;
+
+        case PI: // <? ... ?>
+          if (b == '>' && body > 0 && last1 == '?')
+            state = CONTENT;
+          body++;
+          last1 = b;
+        break;
+
+        case BANG:
+          state = b == '[' ? CDATA : b == 'D' ? DOCTYPE : COMMENT;
+          body    = 1;
+          last1   = last2 = 0;
+          nesting = 1;
+        break;
+
+        case COMMENT: // <!-- ... -->
+        case CDATA:   // <![CDATA[ ... ]]>
+        { int c = state == COMMENT ? '-' : ']';
+          if (b == '>' && body >= 4 && last1 == c && last2 == c)
+            state = CONTENT;
+          body++;
+          last2 = last1;
+          last1 = b;
+        }
+        break;
+
+        case DOCTYPE:
+          if (b == '<')
+            nesting++;
+          else if (b == '>' && --nesting == 0)
+            state = CONTENT;
+        break;
+      }
+      p++;
+    }
+    return p - start;
+  }
+
+  protected void startTag(long tagEnd, boolean empty)
+  {
+    if (!empty) depth++;
+    state = CONTENT;
+    startTag(tagStart, tagEnd, tagLine, empty);
+  }
+
+  protected void addName(int b)
+  {
+    if (nameLength == name.length) name = Arrays.copyOf(name, 2 * nameLength);
+    name[nameLength++] = (byte) b;
+  }
+}
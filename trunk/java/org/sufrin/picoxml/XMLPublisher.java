@@ -0,0 +1,192 @@
+package org.sufrin.picoxml;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * An XMLPublisher&lt;T> publishes items of type <tt>T</tt> read from a single
+ * XML document to a single Flow.Subscriber, reading the document only as fast as the
+ * subscriber demands items: no item is read before it has been requested,
+ * so a slow subscriber throttles the reading rather than making the publisher buffer.
+ * <p>
+ * Items are read, and delivered, by tasks run by the given Executor: at most one at a
+ * time, so a subscriber's methods are never called concurrently. If the document
+ * is malformed the subscriber's <tt>onError</tt> is called with the XMLSyntax (or other) exception;
+ * and if its <tt>onNext</tt> throws, the subscription is cancelled and its <tt>onError</tt> is called with what was thrown.
+ * In every case the document's source is closed when the subscription ends.
+ */
+public abstract class XMLPublisher<T> implements Flow.Publisher<T>
+{
+  protected final Executor      executor;
+  protected final AtomicBoolean subscribed = new AtomicBoolean();
+
+  protected XMLPublisher(Executor executor)
+  {
+    this.executor = executor;
+  }
+
+  /** The next item from the document; or null if there are no more */
+  protected abstract T read() throws Exception;
+
+  /** Close the document's source */
+  protected abstract void close();
+
+  public void subscribe(Flow.Subscriber<? super T> subscriber)
+  {
+    if (subscriber == null) throw new NullPointerException();
+    if (subscribed.compareAndSet(false, true))
+      new Subscription(subscriber).start();
+    else
+    { // Only one subscriber can read the document
+      subscriber.onSubscribe(new Flow.Subscription()
+      {
+        public void request(long n) {}
+        public void cancel() {}
+      });
+      subscriber.onError(new IllegalStateException("An XMLPublisher accepts only one subscriber"));
+    }
+  }
+
+  protected class Subscription implements Flow.Subscription, Runnable
+  {
+    final Flow.Subscriber<? super T> subscriber;
+    /** Items requested but not yet delivered */
+    final AtomicLong    demand = new AtomicLong();
+    /** Number of times the delivery task has been asked to run since it last finished */
+    final AtomicInteger work   = new AtomicInteger();
+    volatile boolean    cancelled;
+    /** Set (by the delivery task) when the subscription has ended */
+    boolean             done;
+    /** A non-positive request, to be reported */
+    volatile long       badRequest = 1;
+
+    Subscription(Flow.Subscriber<? super T> subscriber)
+    {
+      this.subscriber = subscriber;
+    }
+
+    void start()
+    {
+      try
+      {
+        subscriber.onSubscribe(this);
+      }
+      catch (Throwable ex)
+      {
+        cancelled = true;
+      }
+      schedule();
+    }
+
+    public void request(long n)
+    {
+      if (n <= 0)
+        badRequest = n;
+      else
+        for (;;)
+        {
+          long d = demand.get(), e = d + n;
+          if (e < 0) e = Long.MAX_VALUE;
+          if (demand.compareAndSet(d, e)) break;
+        }
+      schedule();
+    }
+
+    public void cancel()
+    {
+      cancelled = true;
+      schedule();
+    }
+
+    void schedule()
+    {
+      if (work.getAndIncrement() == 0)
+        try
+        {
+          executor.execute(this);
+        }
+        catch (RejectedExecutionException ex)
+        {
+          work.set(0);
+          finish(ex);
+        }
+    }
+
+    /** Deliver as many items as have been requested */
+    public void run()
+    {
+      int missed = 1;
+      for (;;)
+      {
+        if (!done)
+        {
+          if (cancelled)
+            finish(null);
+          else if (badRequest <= 0)
+            finish(new IllegalArgumentException("Subscription.request(" + badRequest + "): the number requested must be positive"));
+          else
+            deliver();
+        }
+        missed = work.addAndGet(-missed);
+        if (missed == 0) return;
+      }
+    }
+
+    void deliver()
+    {
+      while (demand.get() > 0 && !cancelled && badRequest > 0)
+      {
+        T item;
+        try
+        {
+          item = read();
+        }
+        catch (Throwable ex)
+        {
+          finish(ex);
+          return;
+        }
+        if (item == null)
+        {
+          close();
+          done = true;
+          try
+          {
+            subscriber.onComplete();
+          }
+          catch (Throwable ex)
+          { // The subscription has ended anyway
+          }
+          return;
+        }
+        demand.decrementAndGet();
+        try
+        {
+          subscriber.onNext(item);
+        }
+        catch (Throwable ex)
+        { // The subscriber has failed: the subscription is cancelled, and it is told why
+          finish(ex);
+          cancelled = true;
+          return;
+        }
+      }
+    }
+
+    /** End the subscription: the subscriber is told of the error (if any) */
+    void finish(Throwable error)
+    {
+      if (done) return;
+      done = true;
+      close();
+      if (error != null && !cancelled)
+        try
+        {
+          subscriber.onError(error);
+        }
+        catch (Throwable ex)
+        { // The subscription has ended anyway
+        }
+    }
+  }
+}
@@ -0,0 +1,279 @@
+package org.sufrin.picoxml;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * An XMLQuery is a compiled query in a subset of XPath, that selects elements. A query is
+ * a sequence of steps, each introduced by <tt>/</tt> (a child step) or <tt>//</tt> (a
+ * descendant step); the first may be introduced by neither (making it a child step). A step is
+ * a name test -- an element name, or <tt>*</tt> -- followed by any number of predicates:
+ * <ul>
+ * <li> <tt>[@name]</tt>: the element has the attribute;
+ * <li> <tt>[@name='value']</tt> (or <tt>"value"</tt>): the attribute has the value;
+ * <li> <tt>[n]</tt>: the element is the n'th (from 1) of the children of its parent that have
+ *      passed the name test and the preceding predicates.
+ * </ul>
+ * For example: <tt>//item[@type='book'][2]</tt>, <tt>/catalog/*&#47;/price</tt>.
+ * <p>
+ * A query is compiled into a nondeterministic automaton whose states (a bit
+ * for each step) at an element are computed from those at its parent, so it is evaluated
+ * in a single pass over the elements in document order: either of a tree (<tt>select(AppElement)</tt>),
+ * or as a document is scanned (<tt>select(factory, source, consumer)</tt>,
+ * which builds only the trees of the selected elements, and skips the subtrees in which
+ * nothing can be selected). A query is immutable, so it may be shared between threads.
+ */
+public class XMLQuery
+{
+  /** A predicate of a step */
+  protected static final class Predicate
+  {
+    /** The attribute tested; or null if this is a position */
+    final String attribute;
+    /** The value the attribute must have; or null if it need only be present */
+    final String value;
+    final int    position;
+
+    Predicate(String attribute, String value, int position)
+    {
+      this.attribute = attribute;
+      this.value     = value;
+      this.position  = position;
+    }
+  }
+
+  /** A step of the query */
+  protected static final class Step
+  {
+    final boolean     descendant;
+    /** The name tested; or null for <tt>*</tt> */
+    final String      name;
+    final Predicate[] predicates;
+    /** Index of the counter (in its parent's counters) of this step's first predicate */
+    final int         counter;
+
+    Step(boolean descendant, String name, Predicate[] predicates, int counter)
+    {
+      this.descendant = descendant;
+      this.name       = name;
+      this.predicates = predicates;
+      this.counter    = counter;
+    }
+
+    boolean accepts(String kind)
+    {
+      return name == null || name == kind || name.equals(kind);
+    }
+
+    /** Does the element pass the name test and the predicates: counters are its parent's */
+    boolean accepts(String kind, Map<String, String> atts, int[] counters)
+    {
+      if (!accepts(kind)) return false;
+      for (int i = 0; i < predicates.length; i++)
+      {
+        Predicate p = predicates[i];
+        if (p.attribute == null)
+        { if (++counters[counter + i] != p.position) return false; }
+        else
+        { String v = atts == null ? null : atts.get(p.attribute);
+          if (v == null || p.value != null && !p.value.equals(v)) return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  protected final String query;
+  protected final Step[] steps;
+  /** Number of predicates: the size of each element's array of counters */
+  protected final int    counters;
+  /** The state bit that means an element is selected */
+  protected final long   selected;
+
+  protected XMLQuery(String query, Step[] steps, int counters)
+  {
+    this.query    = query;
+    this.steps    = steps;
+    this.counters = counters;
+    this.selected = 1L << steps.length;
+  }
+
+  /** Compile the given query; throws IllegalArgumentException if it is malformed */
+  public static XMLQuery compile(String query)
+  {
+    List<Step> steps    = new ArrayList<Step>();
+    int        counters = 0, i = 0, n = query.length();
+    do
+    {
+      boolean descendant = false;
+      if (query.startsWith("//", i))
+      { descendant = true;
+        i += 2;
+      }
+      else if (query.startsWith("/", i) || i > 0)
+        i = expect(query, i, '/');
+      int    start = i;
+      String name;
+      if (i < n && query.charAt(i) == '*')
+      { name = null;
+        i++;
+      }
+      else
+      { while (i < n && isNameChar(query.charAt(i))) i++;
+        if (i == start) throw malformed(query, i, "name or * expected");
+        name = query.substring(start, i).intern();
+      }
+      List<Predicate> predicates = new ArrayList<Predicate>();
+      while (i < n && query.charAt(i) == '[')
+      {
+        i++;
+        if (i < n && query.charAt(i) == '@')
+        {
+          start = ++i;
+          while (i < n && isNameChar(query.charAt(i))) i++;
+          if (i == start) throw malformed(query, i, "attribute name expected");
+          String attribute = query.substring(start, i), value = null;
+          if (i < n && query.charAt(i) == '=')
+          {
+            char quote = ++i < n ? query.charAt(i) : 0;
+            if (quote != '\'' && quote != '"') throw malformed(query, i, "quoted value expected");
+            int end = query.indexOf(quote, i + 1);
+            if (end < 0) throw malformed(query, i, "unclosed value");
+            value = query.substring(i + 1, end);
+            i = end + 1;
+          }
+          predicates.add(new Predicate(attribute, value, 0));
+        }
+        else
+        {
+          start = i;
+          while (i < n && '0' <= query.charAt(i) && query.charAt(i) <= '9') i++;
+          if (i == start || i - start > 9) throw malformed(query, i, "attribute or position expected");
+          int position = Integer.parseInt(query.substring(start, i));
+          if (position == 0) throw malformed(query, start, "positions start at 1");
+          predicates.add(new Predicate(null, null, position));
+        }
+        i = expect(query, i, ']');
+      }
+      steps.add(new Step(descendant, name, predicates.toArray(new Predicate[predicates.size()]), counters));
+      counters += predicates.size();
+    }
+    while (i < n);
+    if (steps.size() > 62) throw new IllegalArgumentException("Query has too many steps: " + query);
+    return new XMLQuery(query, steps.toArray(new Step[steps.size()]), counters);
+  }
+
+  protected static boolean isNameChar(char c)
+  {
+    return XMLScanner.isNameChar(c) || c == '-' || c == '.';
+  }
+
+  protected static int expect(String query, int i, char c)
+  {
+    if (i < query.length() && query.charAt(i) == c) return i + 1;
+    throw malformed(query, i, c + " expected");
+  }
+
+  protected static IllegalArgumentException malformed(String query, int i, String error)
+  {
+    return new IllegalArgumentException("Malformed query: " + query + " (at " + i + ": " + error + ")");
+  }
+
+  /** The initial states: those of the context (or document) element */
+  protected static final long INITIAL = 1L;
+
+  /**
+   * The states at an element of the given kind and attributes, whose parent's
+   * states and counters are given (the counters are updated). If the element is
+   * selected the result includes the <tt>selected</tt> bit.
+   */
+  protected long enter(long states, int[] counters, String kind, Map<String, String> atts)
+  {
+    long next = 0;
+    for (int k = 0; k < steps.length; k++)
+      if ((states & 1L << k) != 0)
+      {
+        Step s = steps[k];
+        if (s.descendant) next |= 1L << k;
+        if (s.accepts(kind, atts, counters)) next |= 1L << (k + 1);
+      }
+    return next;
+  }
+
+  /**
+   * Might an element of the given kind (whose attributes are not yet known), whose parent's states are
+   * given, be selected, or have a descendant that is selected.
+   */
+  protected boolean mayEnter(long states, String kind)
+  {
+    for (int k = 0; k < steps.length; k++)
+      if ((states & 1L << k) != 0 && (steps[k].descendant || steps[k].accepts(kind))) return true;
+    return false;
+  }
+
+  /** Is some step still to be matched in the given states */
+  protected boolean live(long states)
+  {
+    return (states & (selected - 1)) != 0;
+  }
+
+  /**
+   * The elements of the tree selected by the query, in document order. The steps start from
+   * the given element: so a query applied to the tree built from a document (whose root is unnamed)
+   * is as an XPath query of the document.
+   */
+  public List<AppElement> select(AppElement context)
+  {
+    List<AppElement> result = new ArrayList<AppElement>();
+    select(context, INITIAL, result);
+    return result;
+  }
+
+  protected void select(AppElement parent, long states, List<AppElement> result)
+  {
+    int[] count = new int[counters];
+    for (AppTree tree : parent)
+      if (tree instanceof AppElement)
+      {
+        AppElement element = (AppElement) tree;
+        long       next    = enter(states, count, element.kind, element.attrs);
+        if ((next & selected) != 0) result.add(element);
+        if (live(next)) select(element, next, result);
+      }
+  }
+
+  /** Hand the tree of each element selected from the XML read from the given Reader to the consumer */
+  public <T> void select(XMLTreeFactory<T> factory, Reader reader, Consumer<T> consumer)
+  {
+    scanner(factory, consumer).read(reader);
+  }
+
+  /** Hand the tree of each element selected from the UTF-8 encoded XML in bytes[position..limit) to the consumer */
+  public <T> void select(XMLTreeFactory<T> factory, ByteBuffer bytes, Consumer<T> consumer)
+  {
+    scanner(factory, consumer).read(bytes);
+  }
+
+  /** Hand the tree of each element selected from the UTF-8 encoded XML in the given (memory-mapped) file to the consumer */
+  public <T> void select(XMLTreeFactory<T> factory, Path path, Consumer<T> consumer) throws IOException
+  {
+    scanner(factory, consumer).read(path);
+  }
+
+  /** A scanner that evaluates the query, filtered so that it skips subtrees in which nothing can be selected */
+  protected <T> XMLScanner scanner(XMLTreeFactory<T> factory, Consumer<T> consumer)
+  {
+    XMLQueryHandler<T> handler = new XMLQueryHandler<T>(this, factory, consumer);
+    XMLScanner         scanner = new XMLScanner(handler);
+    scanner.setFilter(handler);
+    return scanner;
+  }
+
+  public String toString()
+  {
+    return query;
+  }
+}
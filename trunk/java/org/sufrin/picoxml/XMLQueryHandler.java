@@ -0,0 +1,145 @@
+package org.sufrin.picoxml;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * An XMLQueryHandler&lt;T> evaluates an XMLQuery as a document is scanned, building
+ * a tree of type <tt>T</tt> for each selected element, and handing it to a Consumer as soon
+ * as it has been closed (so an element selected within another selected element is handed over
+ * first). Nothing outside the selected elements is built, so a document can be queried in
+ * memory proportional to its depth and the size of its largest selected element.
+ * <p>
+ * It is also an XMLFilter: when it is a scanner's filter the scanner skips the
+ * subtrees in which nothing can be selected.
+ */
+public class XMLQueryHandler<T> implements XMLHandler, XMLFilter
+{
+  protected final XMLQuery          query;
+  protected final XMLTreeFactory<T> factory;
+  protected final Consumer<T>       consumer;
+
+  /** The states and counters of the open elements (and the document, at depth 0) */
+  protected long[]  states   = new long[16];
+  protected int[][] counters = new int[16][];
+  /** Kinds of the open elements: kinds[1..depth] */
+  protected String[] kinds   = new String[16];
+  protected int      depth;
+
+  /** The trees being built for the open elements (null when none is being built) */
+  protected Composite<T>[] open = newComposites(16);
+  /** Which of the open elements are selected */
+  protected boolean[]      selected = new boolean[16];
+  /** Number of open elements whose trees are being built */
+  protected int            building;
+
+  public XMLQueryHandler(XMLQuery query, XMLTreeFactory<T> factory, Consumer<T> consumer)
+  {
+    this.query    = query;
+    this.factory  = factory;
+    this.consumer = consumer;
+  }
+
+  @SuppressWarnings({"unchecked", "rawtypes"})
+  protected static <T> Composite<T>[] newComposites(int n)
+  {
+    return (Composite<T>[]) new Composite[n];
+  }
+
+  /** The counters for the children of the element at depth d, cleared */
+  protected int[] clearCounters(int d)
+  {
+    int[] c = counters[d];
+    if (c == null)
+      counters[d] = c = new int[query.counters];
+    else
+      Arrays.fill(c, 0);
+    return c;
+  }
+
+  public void startDocument()
+  {
+    depth     = 0;
+    building  = 0;
+    states[0] = XMLQuery.INITIAL;
+    clearCounters(0);
+  }
+
+  public void endDocument()
+  {
+    if (depth > 0) throw new RuntimeException(String.format("Premature end of document in unclosed <%s>", kinds[depth]));
+  }
+
+  public void startElement(String kind, Map<String, String> atts)
+  {
+    long next = query.enter(states[depth], counters[depth], kind, atts);
+    if (++depth == states.length)
+    {
+      int n = 2 * depth;
+      states   = Arrays.copyOf(states, n);
+      counters = Arrays.copyOf(counters, n);
+      kinds    = Arrays.copyOf(kinds, n);
+      open     = Arrays.copyOf(open, n);
+      selected = Arrays.copyOf(selected, n);
+    }
+    states[depth]   = next;
+    kinds[depth]    = kind;
+    selected[depth] = (next & query.selected) != 0;
+    if (query.live(next)) clearCounters(depth);
+    if (selected[depth] || building > 0)
+    {
+      open[depth] = factory.newElement(kind, atts);
+      building++;
+    }
+  }
+
+  public void endElement(String kind)
+  {
+    String tkind = depth == 0 ? "" : kinds[depth];
+    if (tkind != kind && !tkind.equals(kind))
+      throw new RuntimeException(String.format("Non-nested: <%s>...</%s>", tkind, kind));
+    Composite<T> element = open[depth];
+    boolean      chosen  = selected[depth];
+    open[depth]  = null;
+    kinds[depth] = null;
+    depth--;
+    if (element != null)
+    {
+      building--;
+      T tree = element.close();
+      if (building > 0) open[depth].addTree(tree);
+      if (chosen) consumer.accept(tree);
+    }
+  }
+
+  public void acceptPCDATA(CharSequence text, boolean cdata)
+  {
+    if (building > 0) open[depth].addTree(factory.newPCData(text.toString(), cdata));
+  }
+
+  public void acceptComment(CharSequence text)
+  {
+    if (building > 0 && factory.canComment()) open[depth].addTree(factory.newComment(text.toString()));
+  }
+
+  public void acceptPI(CharSequence text)
+  {
+    if (building > 0 && factory.canPI()) open[depth].addTree(factory.newPI(text.toString()));
+  }
+
+  public void acceptDTD(CharSequence text)
+  {
+  }
+
+  public String decodeEntity(String entity)
+  {
+    return null;
+  }
+
+  /** Skip an element if nothing can be selected within it; deliver the whole of an element being built */
+  public Verdict select(String kind, String[] ancestors, int d)
+  {
+    if (building > 0) return Verdict.SELECT;
+    return query.mayEnter(states[depth], kind) ? Verdict.DESCEND : Verdict.SKIP;
+  }
+}
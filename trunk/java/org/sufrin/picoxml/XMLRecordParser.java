@@ -0,0 +1,103 @@
+package org.sufrin.picoxml;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * An XMLRecordParser&lt;T> builds a tree of type <tt>T</tt> for each
+ * <i>record</i> of a document: each element that matches a given path.
+ * As soon as a record is closed it is handed to a Consumer, and is not
+ * added to its parent; so a document consisting of a long list of records can
+ * be processed in memory proportional to the size of its largest record.
+ * <p>
+ * A path is a sequence of element names separated by '/', and matches an element
+ * whose own name is the last of them, and whose closest ancestors' names are the others:
+ * thus <tt>item</tt> matches every <tt>item</tt>, and <tt>catalog/item</tt> matches every
+ * <tt>item</tt> whose parent is a <tt>catalog</tt>. A path that starts with '/' is anchored
+ * at the root of the document: <tt>/catalog/item</tt> matches only the <tt>item</tt>s
+ * in a <tt>catalog</tt> that is the document element. The name <tt>*</tt> matches any name.
+ * <p>
+ * Text, comments, PIs and DTDs outside records are discarded; the elements
+ * outside records are built as usual, and (without their records) make up
+ * the tree returned by <tt>getTree()</tt> at the end of the document.
+ */
+public class XMLRecordParser<T> extends XMLParser<T>
+{
+  protected final String[]    path;
+  protected final boolean     anchored;
+  protected final Consumer<T> consumer;
+  /** Number of records open */
+  protected int               records;
+
+  /** Hand each element matching path to the consumer */
+  public XMLRecordParser(XMLTreeFactory<T> factory, String path, Consumer<T> consumer)
+  {
+    super(factory);
+    this.anchored = path.startsWith("/");
+    this.path     = (anchored ? path.substring(1) : path).split("/");
+    this.consumer = consumer;
+    for (String name : this.path)
+      if (name.length() == 0) throw new IllegalArgumentException("Malformed record path: " + path);
+  }
+
+  /** Does an element of the given kind, whose ancestors' kinds are on <tt>kinds</tt>, match the path */
+  protected boolean matches(String kind)
+  {
+    int n = path.length, top = kinds.size() - 1;
+    // kinds[0] is the document root, whose kind is ""
+    if (anchored ? top != n - 1 : top < n - 1) return false;
+    if (!matches(path[n - 1], kind)) return false;
+    for (int i = n - 2; i >= 0; i--, top--)
+      if (!matches(path[i], kinds.get(top))) return false;
+    return true;
+  }
+
+  protected static boolean matches(String name, String kind)
+  {
+    return name.equals("*") || name.equals(kind);
+  }
+
+  public void startDocument()
+  {
+    records = 0;
+    super.startDocument();
+  }
+
+  public void startElement(String kind, Map<String, String> atts)
+  {
+    if (matches(kind)) records++;
+    super.startElement(kind, atts);
+  }
+
+  /** Hand the tree to the consumer if it is a record; otherwise add it to its parent */
+  protected void closed(String kind, T tree)
+  {
+    if (matches(kind))
+    {
+      records--;
+      consumer.accept(tree);
+    }
+    else
+      super.closed(kind, tree);
+  }
+
+  public void acceptPCDATA(CharSequence text, boolean cdata)
+  {
+    if (records > 0) super.acceptPCDATA(text, cdata);
+  }
+
+  public void acceptComment(CharSequence text)
+  {
+    if (records > 0) super.acceptComment(text);
+  }
+
+  public void acceptPI(CharSequence text)
+  {
+    if (records > 0) super.acceptPI(text);
+  }
+
+  public void acceptDTD(CharSequence text)
+  {
+    if (records > 0) super.acceptDTD(text);
+  }
+}
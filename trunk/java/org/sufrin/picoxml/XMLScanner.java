@@ -4,18 +4,162 @@ package org.sufrin.picoxml;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 
 /**
- * An XMLScanner reads XML text from a Reader, 
- * calling the methods of an XMLHandler at syntacically 
- * significant places in the text.
- *
+ * An XMLScanner reads XML text from a Reader (or UTF-8 text from a
+ * ByteBuffer or a memory-mapped file), calling the methods of an XMLHandler
+ * at syntacically significant places in the text.
+ * <p>
+ * Alternatively the text can be pushed to the scanner as it arrives 
+ * (see <tt>openFeed</tt>), so that no thread need block waiting for it.
  */
 public class XMLScanner
 { /** XML event handler */
   protected XMLHandler handler;
 
   protected Reader reader;
+
+  /** UTF-8 input (when not reading from a Reader): bytes[position..limit) is yet to be decoded */
+  protected ByteBuffer bytes;
+
+  /** The file being mapped region-by-region into <tt>bytes</tt> (if any) */
+  protected FileChannel channel;
+
+  /** File offset of bytes[0], and the size of the file, when <tt>channel</tt> is open */
+  protected long channelBase, channelSize;
+
+  /** Largest region of a file that is mapped at once */
+  public static final int REGION_SIZE = 1 << 30;
+
+  /** Default size of the input window */
+  public static final int BUFFER_SIZE = 16384;
+
+  /** The input window: buf[pos..limit) is yet to be scanned */
+  protected char[] buf;
+  protected int    pos, limit;
+
+  /**
+   * When non-negative, buf[mark..] is retained when the window
+   * is refilled (the refill may move it to the start of buf).
+   */
+  protected int mark = -1;
+
+  /** True once the reader has been exhausted */
+  protected boolean eos;
+
+  /** True when the text is being fed to the scanner (by <tt>feed</tt>), rather than read from a source */
+  protected boolean feeding;
+
+  /** True when <tt>endOfInput</tt> has been called: no more text will be fed */
+  protected boolean inputEnded;
+
+  /**
+   * When feeding, buf[anchor..] is retained (as well as buf[mark..]): it is
+   * where the current step started, and where scanning resumes if the step
+   * runs out of input.
+   */
+  protected int anchor = -1;
+
+  /**
+   * When feeding: a search of the window (for the end of a word, a run of text, an attribute value,
+   * a comment, CDATA section or PI, or a skipped element) that started at buf[searchStart], in the step
+   * from the anchor, had examined buf[..searchPos) -- up to line searchLine -- when the input ran out.
+   * When the step is resumed, the search continues from there rather than from its start.
+   * Otherwise searchStart is -1.
+   */
+  protected int searchStart = -1, searchPos, searchLine;
+
+  /** The state of that search: the hash of a word (and whether it is a name); or the state of the skipping automaton */
+  protected int     searchHash, searchState, searchLevel, searchQuote, searchPrev, searchPrev2;
+  protected boolean searchName;
+
+  /**
+   * When feeding: the word, run of text or attribute value that started at buf[scannedAnchor] had been scanned
+   * -- its segments between entities, and its entities -- up to buf[scannedPos] (on line scannedLine), 
+   * when its type and text were as given by scannedType, scannedMark, scannedTextStart, scannedTextLength and scannedTextHash. 
+   * When the step is resumed, the token is resumed from there, so what had been scanned is neither scanned,
+   * decoded, nor copied again (otherwise scannedAnchor is -1).
+   */
+  protected int     scannedAnchor = -1, scannedPos, scannedLine, scannedMark, scannedTextStart, scannedTextLength, scannedTextHash;
+  protected Lex     scannedType;
+
+  /**
+   * When scannedTextSaved, the text of that token (when it is not in the window) is in scannedText, 
+   * safe from the tokens before it in the step; otherwise scannedText is a spare text buffer.
+   */
+  protected char[]  scannedText;
+  protected boolean scannedTextSaved;
+
+  /**
+   * When feeding: the attributes of the start tag at buf[tagAnchor] that were complete
+   * when the input ran out, and the state of the scanner just after them -- so that when the step
+   * is resumed they are neither scanned nor copied again (otherwise tagAnchor is -1).
+   */
+  protected int        tagAnchor = -1, tagPos, tagCh, tagLine;
+  protected Attributes tagAttributes;
+
+  /** The bytes of an incomplete UTF-8 sequence at the end of the last buffer fed */
+  protected final ByteBuffer carry = ByteBuffer.allocate(4);
+
+  /** True when reading a stream of documents: see <tt>openStream</tt> */
+  protected boolean streaming;
+
+  /** The character that separates the documents of a stream; or -1 if there is none */
+  protected int delimiter = -1;
+
+  /**
+   * When a delimiter has been read into the window it is at buf[limit], and this is the number of 
+   * characters (from the delimiter) that are hidden beyond the limit until <tt>nextDocument</tt> is called; 
+   * otherwise it is -1.
+   */
+  protected int hidden = -1;
+
+  /** Depth of element nesting at the current point of the document */
+  protected int depth;
+
+  /** When non-null, decides which elements are delivered to the handler and which are skipped */
+  protected XMLFilter filter;
+
+  /** When filtering, kinds[0..depth) are the kinds of the open elements */
+  protected String[] kinds = new String[16];
+
+  /** When non-negative, the depth of the parent of the element selected by the filter: its content is not filtered */
+  protected int selected = -1;
+
+  /** Finds delimiters in blocks of the window (a character at a time, or a vector at a time) */
+  protected static final CharSearch search = CharSearch.search;
+
+  /** When non-null, counts what the scanner does: see <tt>setMetrics</tt> */
+  protected XMLMetrics metrics;
+
+  /**
+   * When feeding: the metrics' counts at the anchor, after the attributes of tagAnchor, and at scannedPos. 
+   * Whenever the step is resumed from one of these points, its counts are restored.
+   */
+  protected final XMLMetrics.Counts anchorCounts = new XMLMetrics.Counts(), tagCounts = new XMLMetrics.Counts(), scannedCounts = new XMLMetrics.Counts();
+
+  /** True until the first character has been fed as bytes (which is skipped if it is a byte-order mark) */
+  protected boolean atFirstByte;
+
+  /** 
+   * Thrown by <tt>fill</tt> when feeding and the text fed so far is exhausted: 
+   * the step in progress is abandoned, to be resumed when there is more text.
+   */
+  protected static final class NeedInput extends RuntimeException
+  {
+    private static final long serialVersionUID = 1L;
+
+    NeedInput()
+    {
+      super("More input needed", null, false, false);
+    }
+  }
+
+  protected static final NeedInput NEED_INPUT = new NeedInput();
   
   /** Line the current character came from */
   protected int chLine; 
@@ -36,11 +180,19 @@ public class XMLScanner
 
   public XMLScanner()
   {
+    this(null, BUFFER_SIZE);
   }
 
   public XMLScanner(XMLHandler consumer)
+  {
+    this(consumer, BUFFER_SIZE);
+  }
+
+  /** Construct with an input window of the given initial size */
+  public XMLScanner(XMLHandler consumer, int bufferSize)
   {
     setHandler(consumer);
+    buf = new char[Math.max(16, bufferSize)];
   }
 
   public void setHandler(XMLHandler consumer)
@@ -74,7 +226,7 @@ public class XMLScanner
   {
     nextToken();
     if (this.token != aToken)
-      throw new XMLSyntax(tokenLine, aToken + " expected; found " + this.token + " " + this.value);
+      throw new XMLSyntax(tokenLine, aToken + " expected; found " + this.token + " " + value());
   }
 
   private enum Lex 
@@ -106,95 +258,988 @@ public class XMLScanner
     }
   }
 
+  /** The names of the types of token, in the order of their ordinals */
+  static String[] tokenNames()
+  {
+    Lex[]    lexes = Lex.values();
+    String[] names = new String[lexes.length];
+    for (int i = 0; i < lexes.length; i++) names[i] = lexes[i].name();
+    return names;
+  }
+
   /**
    * Read XML from the given Reader, invoking the current
    * handler's methods at appropriate times.
    */
   public void read(Reader aReader)
   {
-    this.reader = aReader;
-    this.chLine = 1;
-    ch = 0;
-    nextToken();
+    open(aReader);
+    try
+    {
+      while (step()) continue;
+    }
+    finally
+    {
+      close();
+    }
+  }
+
+  /**
+   * Read UTF-8 encoded XML from bytes[position..limit), invoking the current
+   * handler's methods at appropriate times. The bytes are decoded
+   * directly into the scanner's window: there is no intermediate Reader.
+   * The position of the given buffer is not changed.
+   */
+  public void read(ByteBuffer someBytes)
+  {
+    open(someBytes);
+    try
+    {
+      while (step()) continue;
+    }
+    finally
+    {
+      close();
+    }
+  }
+
+  /**
+   * Read UTF-8 encoded XML from the file at the given path, invoking the current
+   * handler's methods at appropriate times. The file is memory-mapped 
+   * (in regions of at most <tt>REGION_SIZE</tt> bytes), and decoded 
+   * directly into the scanner's window, so it is never copied through the heap.
+   */
+  public void read(Path path) throws IOException
+  {
+    open(path);
+    try
+    {
+      while (step()) continue;
+    }
+    finally
+    {
+      close();
+    }
+  }
+
+  /**
+   * Prepare to read XML from the given Reader, and invoke the handler's
+   * <tt>startDocument</tt>. The document is then read by calls of <tt>step()</tt>.
+   */
+  public void open(Reader aReader)
+  {
+    this.feeding = false;
+    this.reader  = aReader;
+    this.bytes   = null;
+    this.channel = null;
+    start();
+  }
+
+  /** 
+   * Prepare to read UTF-8 encoded XML from bytes[position..limit): 
+   * see <tt>open(Reader)</tt>. 
+   */
+  public void open(ByteBuffer someBytes)
+  {
+    this.feeding = false;
+    this.reader  = null;
+    this.channel = null;
+    this.bytes   = someBytes.slice();
+    skipBOM();
+    start();
+  }
+
+  /** 
+   * Prepare to read UTF-8 encoded XML from bytes[position..limit), that
+   * is (part of) a larger text in which its first line is numbered <tt>line</tt>.
+   */
+  public void open(ByteBuffer someBytes, int line)
+  {
+    open(someBytes);
+    chLine = line;
+  }
+
+  /** 
+   * As <tt>open(someBytes, line)</tt>, for bytes that are (part of) the content of an
+   * element nested <tt>depth</tt> deep in the larger text: so that (for example) they
+   * are scanned as content, rather than as text outside the document element.
+   */
+  public void open(ByteBuffer someBytes, int line, int depth)
+  {
+    open(someBytes, line);
+    this.depth = depth;
+    ch         = UNREAD; // the placeholder white space is not content
+  }
+
+  /** 
+   * Prepare to read UTF-8 encoded XML from the file at the given path:
+   * see <tt>open(Reader)</tt>.
+   */
+  public void open(Path path) throws IOException
+  {
+    FileChannel chan = FileChannel.open(path, StandardOpenOption.READ);
+    try
+    {
+      this.feeding     = false;
+      this.reader      = null;
+      this.channel     = chan;
+      this.channelBase = 0;
+      this.channelSize = chan.size();
+      this.bytes       = chan.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(channelSize, REGION_SIZE));
+    }
+    catch (IOException ex)
+    {
+      chan.close();
+      throw ex;
+    }
+    skipBOM();
+    start();
+  }
+
+  /**
+   * Prepare to read a stream of XML documents from the given Reader: each is
+   * started by <tt>nextDocument()</tt>, and then read by calls of <tt>step()</tt>.
+   * A document ends as soon as its root element is closed, and neither that
+   * nor the end of the stream closes the Reader.
+   * <p>
+   * If a delimiter has been set (<tt>setDelimiter</tt>) the documents are separated by
+   * it, and a document ends at it (with an error if its root element is unclosed): 
+   * <tt>skipDocument()</tt> then recovers from an error by abandoning the rest of the document. 
+   * Otherwise the documents are simply concatenated. In either case they may be separated by white space.
+   * Line numbers are counted from the start of the stream.
+   */
+  public void openStream(Reader aReader)
+  {
+    this.feeding = false;
+    this.reader  = aReader;
+    this.bytes   = null;
+    this.channel = null;
+    reset();
+    streaming = true;
+  }
+
+  /** Prepare to read a stream of UTF-8 encoded XML documents from bytes[position..limit): see <tt>openStream(Reader)</tt> */
+  public void openStream(ByteBuffer someBytes)
+  {
+    this.feeding = false;
+    this.reader  = null;
+    this.channel = null;
+    this.bytes   = someBytes.slice();
+    skipBOM();
+    reset();
+    streaming = true;
+  }
+
+  /** 
+   * Separate the documents of streams by the given character (which cannot then appear in a document); 
+   * or, if it is -1, do not separate them.
+   */
+  public void setDelimiter(int delimiter)
+  {
+    this.delimiter = delimiter;
+  }
+
+  /**
+   * Start the next document of the stream, invoking the handler's <tt>startDocument</tt>,
+   * unless (after white space and delimiters) the stream has ended. Returns true if it has
+   * not ended: the document is then read by calls of <tt>step()</tt>.
+   */
+  public boolean nextDocument()
+  {
+    if (!streaming) throw new IllegalStateException("The scanner is not reading a stream (see openStream)");
+    nextRawChar();
+    for (;;)
+    { if (ch == -1 && hidden >= 0)
+      { // Pass the delimiter at buf[limit]
+        pos    = limit + 1;
+        limit += hidden;
+        hidden = -1;
+        hideFrom(pos);
+        nextRawChar();
+      }
+      else if (0 <= ch && ch <= ' ')
+        skipWhite();
+      else 
+        break;
+    }
+    if (ch == -1) return false;
+    token     = null;
+    depth     = 0;
+    selected  = -1;
+    inElement = false;
+    mark      = textStart = -1;
+    if (declared.count > 0) declared.clear();
+    if (decoded.count > 0)  decoded.clear();
+    if (metrics != null) metrics.startDocument();
     handler.startDocument();
+    return true;
+  }
+
+  /**
+   * Abandon the rest of the current document of a stream whose documents are
+   * delimited (after an error, for example): the next document starts after the next delimiter.
+   */
+  public void skipDocument()
+  {
+    if (!streaming || delimiter < 0) throw new IllegalStateException("The scanner is not reading a delimited stream");
+    mark = textStart = -1;
+    pos  = limit;
+    while (fill()) pos = limit;
+    ch    = -1;
+    token = Lex.ENDSTREAM;
+  }
+
+  /** Hide the characters from the first delimiter in buf[from..limit) onwards (if there is one) */
+  protected void hideFrom(int from)
+  {
+    final char[] b = buf;
+    final char   d = (char) delimiter;
+    for (int i = from, l = limit; i < l; i++)
+      if (b[i] == d)
+      { hidden = l - i;
+        limit  = i;
+        return;
+      }
+  }
+
+  /** Release the current source, closing its Reader or file (if any) */
+  public void close()
+  {
+    try
+    {
+      if (reader != null)  reader.close();
+      if (channel != null) channel.close();
+    }
+    catch (Exception e)
+    {
+    }
+    reader  = null;
+    channel = null;
+    bytes   = null;
+    feeding = false;
+    anchor  = -1;
+  }
+
+  /**
+   * Prepare to be fed XML text by calls of <tt>feed</tt>, and invoke the handler's
+   * <tt>startDocument</tt>. Each call of <tt>feed</tt> scans as much of the document 
+   * as it can, invoking the handler's methods for every syntactic unit that is complete; 
+   * a unit that is incomplete is scanned again (from its start) when more text is fed.
+   * <tt>endOfInput</tt> signals that there is no more text.
+   * <p>
+   * A scanner being fed never blocks, so one thread can scan many documents
+   * arriving concurrently (for example from non-blocking channels), 
+   * each with its own scanner.
+   */
+  public void openFeed()
+  {
+    this.reader     = null;
+    this.bytes      = null;
+    this.channel    = null;
+    this.feeding    = true;
+    this.inputEnded = false;
+    carry.clear();
+    atFirstByte = true;
+    start();
+    anchor = 0;
+  }
+
+  /** Feed the text in cs[off..off+len) to the scanner (see <tt>openFeed</tt>) */
+  public void feed(char[] cs, int off, int len)
+  {
+    checkFeeding();
+    for (int done = 0; done < len;)
+    {
+      room(len - done);
+      int n = Math.min(len - done, buf.length - limit);
+      System.arraycopy(cs, off + done, buf, limit, n);
+      limit += n;
+      done  += n;
+      if (metrics != null) metrics.chars += n;
+    }
+    resume();
+  }
+
+  /** 
+   * Feed the UTF-8 encoded text in bytes[position..limit) to the scanner (see <tt>openFeed</tt>), 
+   * consuming them all. A UTF-8 sequence that is incomplete at the end of the 
+   * bytes is completed by the next bytes fed.
+   */
+  public void feed(ByteBuffer someBytes)
+  {
+    checkFeeding();
+    if (carry.position() > 0)
+    { // Complete the sequence left over from the last call
+      int need = 1 + utf8Continuations(carry.get(0));
+      while (carry.position() < need && someBytes.hasRemaining()) carry.put(someBytes.get());
+      if (carry.position() < need) return;
+      carry.flip();
+      decodeFed(carry);
+      carry.clear();
+    }
+    decodeFed(someBytes);
+    while (someBytes.hasRemaining()) carry.put(someBytes.get());
+    resume();
+  }
+
+  /** Feed bytes[off..off+len): see <tt>feed(ByteBuffer)</tt> */
+  public void feed(byte[] someBytes, int off, int len)
+  {
+    feed(ByteBuffer.wrap(someBytes, off, len));
+  }
+
+  /** Signal that no more text will be fed: the document is finished (and the handler's <tt>endDocument</tt> invoked) */
+  public void endOfInput()
+  {
+    checkFeeding();
+    inputEnded = true;
+    if (carry.position() > 0)
+    { carry.flip();
+      decodeFed(carry);
+      carry.clear();
+    }
+    resume();
+    feeding = false;
+    anchor  = -1;
+  }
+
+  /** Has the document being fed been completely scanned */
+  public boolean isFinished()
+  {
+    return token == Lex.ENDSTREAM;
+  }
+
+  protected void checkFeeding()
+  {
+    if (!feeding) throw new IllegalStateException("The scanner is not being fed (see openFeed)");
+  }
+
+  /** Number of continuation bytes that follow the given UTF-8 lead byte */
+  protected static int utf8Continuations(byte b)
+  {
+    return (b & 0xE0) == 0xC0 ? 1 : (b & 0xF0) == 0xE0 ? 2 : (b & 0xF8) == 0xF0 ? 3 : 0;
+  }
+
+  /** Decode someBytes into the window, leaving (unless the input has ended) an incomplete final sequence */
+  protected void decodeFed(ByteBuffer someBytes)
+  {
+    bytes = someBytes;
+    try
+    {
+      while (someBytes.hasRemaining())
+      {
+        room(Math.min(someBytes.remaining(), BUFFER_SIZE) + 2);
+        int n = decode(buf, limit, buf.length - limit);
+        if (n < 0) break;
+        limit += n;
+        if (metrics != null) metrics.chars += n;
+        if (atFirstByte)
+        { // Nothing has yet been scanned, so pos == anchor == 0
+          if (buf[0] == '\uFEFF') pos = anchor = 1;
+          atFirstByte = false;
+        }
+      }
+    }
+    catch (IOException ex)
+    {
+      throw new RuntimeException(ex);
+    }
+    finally
+    {
+      bytes = null;
+    }
+  }
+
+  /** 
+   * Make room for at least n more characters in the window, discarding those before 
+   * the anchor -- except the one just before it, which is the current character when the step started.
+   */
+  protected void room(int n)
+  {
+    if (buf.length - limit >= n) return;
+    int keep = anchor - 1;
+    if (keep > 0)
+    { System.arraycopy(buf, keep, buf, 0, limit - keep);
+      limit  -= keep;
+      pos    -= keep;
+      anchor -= keep;
+      if (searchStart >= 0)
+      { searchStart -= keep;
+        searchPos   -= keep;
+      }
+      if (scannedAnchor >= 0)
+      { scannedAnchor -= keep;
+        scannedPos    -= keep;
+        if (scannedMark >= 0)      scannedMark      -= keep;
+        if (scannedTextStart >= 0) scannedTextStart -= keep;
+      }
+      if (tagAnchor >= 0)
+      { tagAnchor -= keep;
+        tagPos    -= keep;
+      }
+    }
+    if (buf.length - limit < n) buf = Arrays.copyOf(buf, Math.max(2 * buf.length, limit + n));
+  }
+
+  /** Scan as many complete syntactic units as have been fed */
+  protected void resume()
+  {
     while (token != Lex.ENDSTREAM)
     {
-      switch (token)
+      anchor = pos;
+      int     aCh = ch, aLine = chLine;
+      boolean anInElement = inElement;
+      Lex     aToken = token;
+      String  anEntity = entity;
+      if (metrics != null) metrics.save(anchorCounts);
+      try
       {
-        case DOCTYPE:
-          handler.acceptDTD(value);
-        break;
-        case PROCESS:
-          handler.acceptPI(value);
-        break;
+        step();
+        searchStart      = -1;
+        scannedAnchor    = -1;
+        scannedTextSaved = false;
+        tagAnchor        = -1;
+      }
+      catch (NeedInput more)
+      { // Abandon the step, to resume it from the anchor
+        if (metrics != null) metrics.restore(anchorCounts);
+        if (scannedAnchor >= 0 && scannedTextStart < 0 && !scannedTextSaved)
+        { char[] t = text;
+          text             = scannedText == null ? new char[t.length] : scannedText;
+          scannedText      = t;
+          scannedTextSaved = true;
+        }
+        pos       = anchor;
+        ch        = aCh;
+        chLine    = aLine;
+        inElement = anInElement;
+        token     = aToken;
+        entity    = anEntity;
+        mark      = textStart = -1;
+        return;
+      }
+    }
+  }
 
-        case IDENTIFIER:
-        case WORD:
-        case CDATA:
-          handler.acceptPCDATA(value, token == Lex.CDATA);
-        break;
+  /** Skip a UTF-8 byte-order mark at the start of <tt>bytes</tt> */
+  protected void skipBOM()
+  {
+    int p = bytes.position();
+    if (bytes.limit() - p >= 3 && bytes.get(p) == (byte) 0xEF && bytes.get(p + 1) == (byte) 0xBB && bytes.get(p + 2) == (byte) 0xBF)
+      bytes.position(p + 3);
+  }
 
-        case POINTBRASLASH: // </ tag >
-          checkToken(Lex.IDENTIFIER);
-          handler.endElement(value);
-          checkToken(Lex.POINTKET);
-        break;
+  /** Reset the scanning state for a new source, and start the document */
+  protected void start()
+  {
+    reset();
+    if (metrics != null) metrics.startDocument();
+    handler.startDocument();
+  }
 
-        case COMMENT: // <!-- ... -->
-          handler.acceptComment(value);
-        break;
+  /** Reset the scanning state for a new source */
+  protected void reset()
+  {
+    this.chLine = 1;
+    pos = limit = 0;
+    mark = -1;
+    eos = false;
+    ch = 0;
+    token = null;
+    inElement = false;
+    depth     = 0;
+    selected  = -1;
+    streaming = false;
+    hidden    = -1;
+    searchStart      = -1;
+    scannedAnchor    = -1;
+    scannedTextSaved = false;
+    tagAnchor        = -1;
+    if (declared.count > 0) declared.clear();
+    if (decoded.count > 0)  decoded.clear();
+  }
 
-        default:
-          throw new XMLSyntax(tokenLine, "Unexpected token: " + token + " " + value);
-        case POINTBRA: // <id id="..." ...
-        {
-          Map<String, String> atts = new Attributes();
-          inElement = true;
-          checkToken(Lex.IDENTIFIER);
-          String tag = value;
-          nextToken();
+  /**
+   * Scan the next syntactic unit of the document, invoking the handler's method(s) for it:
+   * an element header causes a <tt>startElement</tt> (and if it is of the form 
+   * &lt;kind .../> an <tt>endElement</tt>); every other unit causes a single call.
+   * At the end of the stream, invoke the handler's <tt>endDocument</tt> and
+   * yield false.
+   */
+  public boolean step()
+  {
+    if (token == Lex.ENDSTREAM) return false;
+    nextToken();
+    switch (token)
+    {
+      case ENDSTREAM:
+        handler.endDocument();
+        if (metrics != null) metrics.endDocument();
+        return false;
+
+      case DOCTYPE:
+        handler.acceptDTD(text());
+      break;
+      case PROCESS:
+        handler.acceptPI(text());
+      break;
+
+      case IDENTIFIER:
+      case WORD:
+      case CDATA:
+        handler.acceptPCDATA(text(), token == Lex.CDATA);
+      break;
 
-          while (token == Lex.IDENTIFIER)
+      case POINTBRASLASH: // </ tag >
+      { inElement = true;
+        checkToken(Lex.IDENTIFIER);
+        String tag = name();
+        checkToken(Lex.POINTKET);
+        inElement = false;
+        handler.endElement(tag);
+        if (--depth == selected) selected = -1;
+        if (depth == 0 && streaming) return endDocument();
+      }
+      break;
+
+      case COMMENT: // <!-- ... -->
+        handler.acceptComment(text());
+      break;
+
+      default:
+        throw new XMLSyntax(tokenLine, "Unexpected token: " + token + " " + value());
+      case POINTBRA: // <id id="..." ...
+      {
+        inElement = true;
+        checkToken(Lex.IDENTIFIER);
+        String tag = name();
+        if (filter != null && selected < 0)
+          switch (filter.select(tag, kinds, depth))
           {
-            String key = value;
-            skipToken(Lex.EQUALS);
-            if (token == Lex.SQUOTE)
-            {
-              atts.put(key.intern(), value.intern());
-              nextToken();
+            case SKIP:
+              if (metrics != null) metrics.skipped++;
+              skip(tag, SKIP_TAG, 0);
+              inElement = false;
+              return depth > 0 || !streaming || endDocument();
+            case SELECT:
+              selected = depth;
+            break;
+            default:
+          }
+        Attributes atts;
+        if (tagAnchor >= 0 && tagAnchor == anchor)
+        { // resume after the attributes already scanned
+          atts   = tagAttributes;
+          pos    = tagPos;
+          ch     = tagCh;
+          chLine = tagLine;
+          if (metrics != null) metrics.restore(tagCounts);
+        }
+        else
+        { atts = reuseAttributes ? attributes : new Attributes();
+          atts.clear();
+        }
+        nextToken();
+
+        while (token == Lex.IDENTIFIER)
+        {
+          String key = name();
+          skipToken(Lex.EQUALS);
+          if (token == Lex.SQUOTE)
+          {
+            atts.put(key, internValues ? value().intern() : value());
+            if (feeding)
+            { tagAnchor     = anchor;
+              tagAttributes = atts;
+              tagPos        = pos;
+              tagCh         = ch;
+              tagLine       = chLine;
+              if (metrics != null) metrics.save(tagCounts);
             }
-            else throw new XMLSyntax(tokenLine, "Found " + token + " when string expected in " + key + "=...");
+            nextToken();
           }
+          else throw new XMLSyntax(tokenLine, "Found " + token + " when string expected in " + key + "=...");
+        }
 
-          handler.startElement(tag, atts);
-          if (token == Lex.SLASHPOINTKET) // />
-            handler.endElement(tag);
-          else if (token != Lex.POINTKET) // >
-            throw new XMLSyntax(tokenLine, "> expected in start tag: found " + token);
-          inElement = false;
+        handler.startElement(tag, atts);
+        if (metrics != null) metrics.element(depth + 1, atts.size);
+        if (token == Lex.SLASHPOINTKET) // />
+          handler.endElement(tag);
+        else if (token != Lex.POINTKET) // >
+          throw new XMLSyntax(tokenLine, "> expected in start tag: found " + token);
+        else
+        { if (filter != null)
+          { if (depth == kinds.length) kinds = Arrays.copyOf(kinds, 2 * depth);
+            kinds[depth] = tag;
+          }
+          depth++;
         }
+        if (depth == selected) selected = -1; // an empty element was selected
+        inElement = false;
+        if (depth == 0 && streaming) return endDocument();
       }
-      nextToken();
     }
-    handler.endDocument();
-    try
-    {
-      aReader.close();
+    return true;
+  }
+
+  /**
+   * Filter the elements of documents: each element (outside an element the filter has selected) is
+   * delivered to the handler or skipped as the filter decides. If the filter is null, nothing is skipped.
+   */
+  public void setFilter(XMLFilter filter)
+  {
+    this.filter = filter;
+  }
+
+  /**
+   * Count what the scanner does in the given metrics (from the start of the next document);
+   * or, if they are null, stop counting. To time the handler's callbacks
+   * too, install <tt>metrics.timed(handler)</tt> as the handler.
+   */
+  public void setMetrics(XMLMetrics metrics)
+  {
+    this.metrics = metrics;
+  }
+
+  public XMLMetrics getMetrics()
+  {
+    return metrics;
+  }
+
+  /**
+   * Skip the content and end tag of the element whose start tag has just been scanned 
+   * (as for a skipped element: see XMLFilter). The handler is not told of the end of the element.
+   */
+  public void skipContent(String tag)
+  {
+    if (ch != UNREAD || token != Lex.POINTKET) throw new IllegalStateException("skipContent() is not after a start tag");
+    skip(tag, SKIP_CONTENT, 1);
+    if (--depth == selected) selected = -1;
+  }
+
+  /** States of the automaton that skips an element */
+  protected static final int SKIP_CONTENT = 0, SKIP_LT = 1, SKIP_TAG = 2, SKIP_QUOTE = 3, SKIP_ENDTAG = 4, 
+                             SKIP_BANG = 5, SKIP_BANGDASH = 6, SKIP_COMMENT = 7, SKIP_CDATA = 8, SKIP_PI = 9, SKIP_DECL = 10;
+
+  /**
+   * Pass over the rest of an element, starting in the given state at the given level of 
+   * element nesting (0 in its start tag, 1 in its content), by matching brackets and counting
+   * the lines passed; the element's end is reached when the level returns to 0. When starting in 
+   * its start tag the current character is the one after its name.
+   */
+  protected void skip(String tag, int state, int level)
+  {
+    if (state == SKIP_TAG)
+    { // Rescan the current character
+      if (ch < 0) throw new XMLSyntax(tokenLine, "Premature end of document in <" + tag + ">");
+      if (ch == '\n') chLine--;
+      pos--;
     }
-    catch (Exception e)
+    mark = textStart = -1;
+    int quote = 0, prev = 0, prev2 = 0, start = pos;
+    if (searchStart == start)
+    { pos    = searchPos;
+      chLine = searchLine;
+      state  = searchState;
+      level  = searchLevel;
+      quote  = searchQuote;
+      prev   = searchPrev;
+      prev2  = searchPrev2;
+    }
+    for (;;)
     {
+      final char[] b = buf;
+      final int    l = limit;
+      int p = pos, line = chLine;
+      while (p < l)
+      {
+        char c = b[p++];
+        if (c == '\n') line++;
+        switch (state)
+        {
+          case SKIP_CONTENT:
+            if (c == '<') state = SKIP_LT;
+          break;
+          case SKIP_LT:
+            state = c == '/' ? SKIP_ENDTAG : c == '!' ? SKIP_BANG : c == '?' ? SKIP_PI : SKIP_TAG;
+          break;
+          case SKIP_TAG:
+            if (c == '"' || c == '\'')
+            { quote = c;
+              state = SKIP_QUOTE;
+            }
+            else if (c == '>')
+            { if (prev != '/') level++;
+              state = SKIP_CONTENT;
+              if (level == 0)
+              { pos    = p;
+                chLine = line;
+                ch     = UNREAD;
+                return;
+              }
+            }
+          break;
+          case SKIP_QUOTE:
+            if (c == quote) state = SKIP_TAG;
+          break;
+          case SKIP_ENDTAG:
+            if (c == '>')
+            { state = SKIP_CONTENT;
+              if (--level == 0)
+              { pos    = p;
+                chLine = line;
+                ch     = UNREAD;
+                return;
+              }
+            }
+          break;
+          case SKIP_BANG:
+            state = c == '-' ? SKIP_BANGDASH : c == '[' ? SKIP_CDATA : SKIP_DECL;
+          break;
+          case SKIP_BANGDASH:
+            state = c == '-' ? SKIP_COMMENT : SKIP_DECL;
+            c     = 0; // so that <!--> does not end the comment
+          break;
+          case SKIP_COMMENT:
+            if (c == '>' && prev == '-' && prev2 == '-') state = SKIP_CONTENT;
+          break;
+          case SKIP_CDATA:
+            if (c == '>' && prev == ']' && prev2 == ']') state = SKIP_CONTENT;
+          break;
+          case SKIP_PI:
+            if (c == '>' && prev == '?') state = SKIP_CONTENT;
+          break;
+          case SKIP_DECL:
+            if (c == '>') state = SKIP_CONTENT;
+          break;
+        }
+        prev2 = prev;
+        prev  = c;
+      }
+      pos    = p;
+      chLine = line;
+      if (feeding)
+      { searched(start, p, line);
+        searchState = state;
+        searchLevel = level;
+        searchQuote = quote;
+        searchPrev  = prev;
+        searchPrev2 = prev2;
+      }
+      if (!fill())
+      { ch = -1;
+        throw new XMLSyntax(chLine, "Premature end of document in skipped <" + tag + ">");
+      }
     }
   }
 
-  /** The current symbol's characters, if it's a class */
+  /** End a document of a stream when its root element has been closed */
+  protected boolean endDocument()
+  {
+    token = Lex.ENDSTREAM;
+    handler.endDocument();
+    if (metrics != null) metrics.endDocument();
+    return false;
+  }
+
+  /** 
+   * The current symbol's characters, if it's a class; null if
+   * they have not yet been materialized (see <tt>value()</tt>).
+   */
   protected String value = null;
 
+  /** The current symbol's characters as a String */
+  protected String value()
+  {
+    if (value == null) value = tokenText();
+    return value;
+  }
+
+  /** 
+   * The current symbol's characters as a name: the canonical String with these
+   * characters from the symbol table.
+   */
+  protected String name()
+  {
+    if (value == null) 
+      value = textStart < 0 
+            ? symbols.lookup(text, 0, textLength, SymbolTable.hash(text, 0, textLength)) 
+            : symbols.lookup(buf, textStart, textLength, textHash);
+    return value;
+  }
+
+  /** Canonical Strings for element and attribute names */
+  protected SymbolTable symbols = new SymbolTable();
+
+  /** The symbol table used for element and attribute names */
+  public SymbolTable getSymbolTable()
+  {
+    return symbols;
+  }
+
+  /**
+   * Use the given symbol table for element and attribute names: a table 
+   * may be shared between scanners (including scanners in different threads).
+   */
+  public void setSymbolTable(SymbolTable symbols)
+  {
+    this.symbols = symbols;
+  }
+
+  /**
+   * The current symbol's characters as they are to be delivered to
+   * the handler: a transient view if <tt>transientText</tt>, else a String. 
+   */
+  protected CharSequence text()
+  {
+    if (value == null && transientText)
+      return view.set(textStart < 0 ? text : buf, textStart < 0 ? 0 : textStart, textLength);
+    else
+      return value();
+  }
+
+  /** 
+   * When true, PCDATA, comments, PIs and DTDs are delivered to the handler 
+   * as a reusable <tt>TextView</tt> of the scanner's buffers, rather than as a 
+   * fresh String.
+   */
+  protected boolean transientText = false;
+
+  /** The view that is delivered when <tt>transientText</tt> */
+  protected final TextView view = new TextView();
+
+  /** When true, the same Attributes is (cleared and) delivered with every <tt>startElement</tt> */
+  protected boolean reuseAttributes = false;
+
+  /** The Attributes that is delivered when <tt>reuseAttributes</tt> */
+  protected final Attributes attributes = new Attributes();
+
+  /**
+   * Deliver the same (cleared and refilled) Attributes to every <tt>startElement</tt>:
+   * it is valid only for the duration of the callback. Handlers that retain
+   * attributes (XMLParser does) must copy them (<tt>Attributes.copy()</tt>).
+   */
+  public void setReuseAttributes(boolean reuseAttributes)
+  {
+    this.reuseAttributes = reuseAttributes;
+  }
+
+  /** When true (the default) attribute values are interned */
+  protected boolean internValues = true;
+
+  /** Intern attribute values (or not) */
+  public void setInternValues(boolean internValues)
+  {
+    this.internValues = internValues;
+  }
+
+  /** How the text between markup is delivered as PCDATA */
+  public enum TextMode
+  {
+    /** Each word (each run of characters other than white space) is delivered separately: the default */
+    WORDS,
+    /** Each run of text between markup is delivered whole, with its white space */
+    PRESERVE,
+    /** Each run of text is delivered whole, without leading or trailing white space; runs of white space are dropped */
+    TRIM,
+    /** As TRIM, with each internal run of white space replaced by a single space */
+    NORMALIZE
+  }
+
+  protected TextMode textMode = TextMode.WORDS;
+
+  /**
+   * Deliver PCDATA as the given mode specifies. In any mode but WORDS, white space
+   * outside the document element is not delivered.
+   */
+  public void setTextMode(TextMode textMode)
+  {
+    this.textMode = textMode;
+  }
+
+  /**
+   * Deliver PCDATA, comments, PIs and DTDs as transient views, valid only for
+   * the duration of the handler callback to which they are passed. 
+   * Handlers that retain text must copy it (<tt>toString()</tt>).
+   */
+  public void setTransientText(boolean transientText)
+  {
+    this.transientText = transientText;
+  }
+
   /** The current character */
   protected int ch;
 
+  /** 
+   * The value of <tt>ch</tt> after a <tt>&gt;</tt> that ends a tag: the character that follows
+   * it is not read until the next token is needed, so a scanner never waits for input 
+   * beyond the end of a document.
+   */
+  protected static final int UNREAD = -2;
+
   /** Expansion of the last entity read */
   protected String entity;
 
+  /**
+   * The current token's text is buf[textStart..textStart+textLength) 
+   * when textStart is non-negative; otherwise text[0..textLength).
+   */
+  protected int textStart = -1, textLength;
+
+  /** 
+   * Hash (as <tt>SymbolTable.hash</tt>) of the current word's text, computed as it is scanned:
+   * valid only when the text is in the window (<tt>textStart</tt> is non-negative).
+   */
+  protected int textHash;
+  
+  /** Accumulates token text that is not contiguous in the input window */
+  protected char[] text = new char[256];
+
+  /** Accumulates the name of the entity being read */
+  protected char[] entName = new char[32];
+
+  /** Entities known to the scanner: initially the predefined entities */
+  protected EntityTable entities = EntityTable.defaults();
+
+  /** Entities declared in the internal subset of the current document's DOCTYPE */
+  protected final EntityTable declared = new EntityTable();
+
+  /** The handler's decodings of the entities it has been asked about in the current document */
+  protected final EntityTable decoded = new EntityTable();
+
+  /** Recorded in <tt>decoded</tt> for an entity that the handler does not decode */
+  protected static final String UNDECODED = new String("");
+
+  /** The table in which the scanner looks up entities (before those declared by the document) */
+  public EntityTable getEntityTable()
+  {
+    return entities;
+  }
+
+  /**
+   * The entities known in the current document: those of the scanner's table, with
+   * those declared in the document's DOCTYPE (over which the table's take precedence).
+   * A scanner that reads part of the document, without its DOCTYPE, can be given this as its table.
+   */
+  public EntityTable getDocumentEntities()
+  {
+    if (declared.count == 0) return entities;
+    EntityTable table = new EntityTable(entities);
+    table.putAll(declared, false);
+    return table;
+  }
+
+  /**
+   * Look up entities in the given table: a table may be shared between scanners
+   * (including scanners in different threads). An entity in the table
+   * takes precedence over one declared in a document's DOCTYPE. (As ever, an entity 
+   * decoded by the handler's <tt>decodeEntity</tt> takes precedence over both.)
+   */
+  public void setEntityTable(EntityTable entities)
+  {
+    this.entities = entities;
+  }
+
   /**
    * True iff currently reading an element header < ... />
    * or < ... >
@@ -204,21 +1249,27 @@ public class XMLScanner
   /** Read the next token */
   protected void nextToken()
   {
-    if (0 <= ch && ch <= ' ')
-    {
-      do
-      {
-        nextRawChar();
-      }
-      while (0 <= ch && ch <= ' ');
-    }
+    if (ch == UNREAD) nextRawChar();
+    boolean run = textMode != TextMode.WORDS && !inElement;
+    if (0 <= ch && ch <= ' ' && !(run && textMode == TextMode.PRESERVE && depth > 0)) skipWhite();
     tokenLine = chLine;
+    mark = textStart = -1;
+    textLength = textHash = 0;
     value = "";
     if (ch == -1)
     {
       token = Lex.ENDSTREAM;
     }
     else
+    if (run && ch != '<')
+    {
+      scanText();
+      if (textLength == 0) // it was all white space
+      { nextToken();
+        return;
+      }
+    }
+    else
     // ... substantive symbols ...
     if (inElement && ch == '=')
     {
@@ -228,17 +1279,46 @@ public class XMLScanner
     }
     else if (inElement && (ch == '\'' || ch == '"'))
     {
-      int close = ch;
-      StringBuilder b = new StringBuilder();
-      nextChar();
+      int close = ch, quote = pos - 1;
+      if (!resumeToken(quote)) nextChar();
       while (0 <= ch && ch != close)
       {
-        if (ch == '&') { b.append(entity); entity=null; }
-        else b.append((char) ch);
-        nextChar();
+        if (ch == '&') 
+        { appendText(entity); 
+          entity=null; 
+          scanned(quote);
+          nextChar();
+        }
+        else
+        { int start = pos - 1, i = pos;
+          if (mark < 0) mark = start;
+          if (searchStart == start)
+          { i      = searchPos;
+            chLine = searchLine;
+          }
+          for (;;)
+          { final char[] b = buf;
+            final int    l = limit;
+            int from = i;
+            i = search.indexOf(b, i, l, (char) close, '&');
+            chLine += search.count(b, from, i, '\n');
+            if (i < l) break;
+            pos = i;
+            int was = pos;
+            searched(start, i, chLine);
+            boolean more = fill();
+            start -= was - pos;
+            i = pos;
+            if (!more) break;
+          }
+          appendRun(start, i);
+          pos = i;
+          scanned(quote);
+          nextChar();
+        }
       }
       token = Lex.SQUOTE;
-      value = b.toString();
+      value = tokenText();
       nextRawChar();
     }
     else if (inElement && ch == '/')
@@ -246,7 +1326,7 @@ public class XMLScanner
       nextRawChar();
       if (ch == '>')
       {
-        nextRawChar();
+        ch    = UNREAD;
         token = Lex.SLASHPOINTKET;
       }
       else throw new XMLSyntax(tokenLine, "/> expected; found /" + ((char) ch));
@@ -262,21 +1342,19 @@ public class XMLScanner
       else if (ch == '?')
       {
         nextRawChar();
-        int lastch = ch;
-        StringBuilder b = new StringBuilder();
-        while (0 <= ch && !(ch == '>' && lastch == '?'))
-        {
-          b.append((char) ch);
-          lastch = ch;
-          nextRawChar();
-        }
-        if (ch == -1)
+        if (ch < 0)
+          throw new XMLSyntax(tokenLine, "<? with runaway body ...");
+        // The body runs up to the first ?> that follows its first character
+        int end = scanTo('?', '?', 1);
+        if (end < 0)
           throw new XMLSyntax(tokenLine, "<? with runaway body ...");
         else
         {
-          nextRawChar();
-          value = b.substring(0, b.length() - 1);
+          textStart  = mark;
+          textLength = end - 1 - mark;
+          value = null;
           token = Lex.PROCESS;
+          nextRawChar();
         }
       }
       else if (ch == '!')
@@ -285,106 +1363,509 @@ public class XMLScanner
         if (ch == '[') // Assume <![CDATA and read to
                         // closing ]]>
         {
-          StringBuilder b = new StringBuilder();
-          do
-          {
-            while (0 <= ch && ch != '>')
-            {
-              b.append((char) ch);
-              nextRawChar();
-            }
-            if (ch > 0)
-            {
-              b.append((char) ch);
-              nextRawChar();
-            }
-          }
-          while (0 <= ch && !endCDATA(b));
-
-          if (ch < 0)
-            throw new XMLSyntax(tokenLine, "<![CDATA[ ... ]]> expected; found <!" + b.toString() + " at end of file");
-          else if (isCDATA(b))
+          int end = scanTo(']', ']', 4);
+          if (end < 0)
+            throw new XMLSyntax(tokenLine, "<![CDATA[ ... ]]> expected; found <!" + bodyText(limit) + " at end of file");
+          else if (end - mark + 1 > 7 && startsWith(mark, "[CDATA["))
           {
-            value = b.substring(7, b.length() - 3);
+            textStart  = mark + 7;
+            textLength = end - 2 - textStart;
+            value = null;
             token = Lex.CDATA;
+            nextRawChar();
           }
-          else throw new XMLSyntax(tokenLine, "<![CDATA[ ... ]]> expected; found <!" + b.toString() + ">");
+          else throw new XMLSyntax(tokenLine, "<![CDATA[ ... ]]> expected; found <!" + bodyText(end + 1));
         }
         else if (ch == 'D') // Assume <!DOCTYPE and read to
                             // matching closing >
         {
-          int count = 1;
-          while (0 <= ch && count > 0)
-          {
-            nextRawChar();
-            if (ch == '<')
-              count++;
-            else if (ch == '>')
-              count--;
+          int count = 1, i = pos;
+          mark = pos - 1;
+          while (count > 0)
+          { final char[] b = buf;
+            final int    l = limit;
+            int line = chLine;
+            while (i < l && count > 0)
+            { char c = b[i++];
+              if (c == '<')
+                count++;
+              else if (c == '>')
+                count--;
+              else if (c == '\n')
+                line++;
+            }
+            chLine = line;
+            pos = i;
+            if (count > 0 && !fill()) break;
+            i = pos;
           }
           if (count != 0)
             throw new XMLSyntax(tokenLine, "<!DOCTYPE with runaway body ...");
+          declareEntities(mark, pos - 1);
           token = Lex.DOCTYPE;
           nextRawChar();
         }
         else
         // Assume <!-- comment -->
-        {
-          StringBuilder b = new StringBuilder();
-          do
-          {
-            while (0 <= ch && ch != '>')
-            {
-              b.append((char) ch);
-              nextRawChar();
-            }
-            if (ch > 0)
-            {
-              b.append((char) ch);
-              nextRawChar();
-            }
-          }
-          while (0 <= ch && !endComment(b));
-
-          if (isComment(b))
+        { int end = ch < 0 ? -1 : scanTo('-', '-', 4);
+          if (end >= 0 && buf[mark] == '-' && buf[mark + 1] == '-')
           {
-            value = b.substring(2, b.length() - 3);
+            textStart  = mark + 2;
+            textLength = end - 2 - textStart;
+            value = null;
             token = Lex.COMMENT;
+            nextRawChar();
           }
-          else throw new XMLSyntax(tokenLine, "<!-- ... --> expected; found <!" + b.toString());
+          else throw new XMLSyntax(tokenLine, "<!-- ... --> expected; found <!" + (end < 0 ? bodyText(limit) : bodyText(end + 1)));
         }
       }
       else token = Lex.POINTBRA;
     }
     else if (ch == '>')
     {
-      nextRawChar();
+      ch    = UNREAD;
       token = Lex.POINTKET;
     }
     else
     // a new pcdata lump begins
     {
-      StringBuilder b = new StringBuilder();
       token = Lex.IDENTIFIER;
+      int word = pos - 1;
       // leading & is a special case
-      if (ch == '&')
+      if (resumeToken(word))
+        ;
+      else if (ch == '&')
       {
         token = Lex.WORD;
         nextEnt();
-        b.append(entity); entity=null;
+        appendText(entity); entity=null;
+        scanned(word);
         nextChar();
       }
       while (ch > ' ' && ch != '<' && ch != '>' && !(inElement && (ch == '/' || ch == '=')))
       {
         if (ch == '&')
-          b.append(entity);
-        else b.append((char) ch);
-        if (!Character.isLetterOrDigit(ch) && ch != '_' && ch != ':')
-          token = Lex.WORD;
+        { token = Lex.WORD;
+          appendText(entity); entity=null;
+          scanned(word);
+          nextChar();
+        }
+        else
+        { int     start = pos - 1, i = pos;
+          boolean name  = isNameChar((char) ch);
+          int     h     = 31 * textHash + ch;
+          if (mark < 0) mark = start;
+          if (searchStart == start)
+          { i    = searchPos;
+            h    = searchHash;
+            name = searchName;
+          }
+          for (;;)
+          { final char[]  b  = buf;
+            final int     l  = limit;
+            final boolean in = inElement;
+            char c;
+            while (i < l && (c = b[i]) > ' ' && c != '<' && c != '>' && c != '&' && !(in && (c == '/' || c == '=')))
+            { if (name && !isNameChar(c)) name = false;
+              h = 31 * h + c;
+              i++;
+            }
+            if (i < l) break;
+            pos = i;
+            int was = pos;
+            searched(start, i, chLine);
+            searchHash = h;
+            searchName = name;
+            boolean more = fill();
+            start -= was - pos;
+            i = pos;
+            if (!more) break;
+          }
+          if (!name) token = Lex.WORD;
+          textHash = h;
+          appendRun(start, i);
+          pos = i;
+          scanned(word);
+          nextChar();
+        }
+      }
+      value = null;
+    }
+    if (metrics != null) metrics.token(token.ordinal());
+  }
+
+  /** Scan a run of text, up to the next <tt>&lt;</tt> (or the end of the input), as a single WORD */
+  protected void scanText()
+  {
+    token = Lex.WORD;
+    int run = pos - 1;
+    // leading & is a special case
+    if (resumeToken(run))
+      ;
+    else if (ch == '&')
+    {
+      nextEnt();
+      appendText(entity); entity=null;
+      scanned(run);
+      nextChar();
+    }
+    while (ch >= 0 && ch != '<')
+    {
+      if (ch == '&')
+      { appendText(entity); entity=null;
+        scanned(run);
+        nextChar();
+      }
+      else
+      { int start = pos - 1, i = pos, line = chLine;
+        if (mark < 0) mark = start;
+        if (searchStart == start)
+        { i    = searchPos;
+          line = searchLine;
+        }
+        for (;;)
+        { final char[] b = buf;
+          final int    l = limit;
+          int from = i;
+          i = search.indexOf(b, i, l, '<', '&');
+          line += search.count(b, from, i, '\n');
+          if (i < l) break;
+          pos = i;
+          int was = pos;
+          searched(start, i, line);
+          boolean more = fill();
+          start -= was - pos;
+          i = pos;
+          if (!more) break;
+        }
+        chLine = line;
+        appendRun(start, i);
+        pos = i;
+        scanned(run);
         nextChar();
       }
-      value = b.toString();
     }
+    value = null;
+    if (textMode != TextMode.PRESERVE) trimText();
+  }
+
+  /** Remove leading and trailing white space from the current token's text; and, if NORMALIZE, normalize the rest */
+  protected void trimText()
+  {
+    char[] b = textStart < 0 ? text : buf;
+    int    s = textStart < 0 ? 0 : textStart, n = textLength, lead = 0;
+    while (n > 0 && b[s + n - 1] <= ' ') n--;
+    while (lead < n && b[s + lead] <= ' ') lead++;
+    if (textStart >= 0)
+      textStart += lead;
+    else if (lead > 0)
+      System.arraycopy(text, lead, text, 0, n - lead);
+    textLength = n -= lead;
+    if (textMode == TextMode.NORMALIZE)
+    { s = textStart < 0 ? 0 : textStart;
+      // The first white space that is not a single space (the text ends with non-white space)
+      int i = 0;
+      while (i < n && (b[s + i] > ' ' || b[s + i] == ' ' && b[s + i + 1] > ' ')) i++;
+      if (i < n)
+      { detachText(0);
+        b = text;
+        int j = i;
+        for (int k = i; k < n; k++)
+        { char c = b[k];
+          if (c > ' ')
+            b[j++] = c;
+          else if (b[j - 1] != ' ')
+            b[j++] = ' ';
+        }
+        textLength = j;
+      }
+    }
+  }
+
+  /** Is c a character that may appear in an IDENTIFIER */
+  protected static boolean isNameChar(char c)
+  {
+    return ('a' <= c && c <= 'z') || ('A' <= c && c <= 'Z') || ('0' <= c && c <= '9') || c == '_' || c == ':' 
+        || (c >= 128 && Character.isLetterOrDigit(c));
+  }
+
+  /**
+   * Skip white space (and control characters) up to the next
+   * substantive character, counting lines as they pass.
+   */
+  protected void skipWhite()
+  {
+    while (0 <= ch && ch <= ' ')
+    { final char[] b = buf;
+      final int    l = limit;
+      int p = pos, line = chLine;
+      while (p < l && b[p] <= ' ')
+        if (b[p++] == '\n') line++;
+      chLine = line;
+      pos = p;
+      if (p < l)
+        ch = b[pos++];
+      else if (!fill())
+        ch = -1;
+    }
+  }
+
+  /**
+   * Scan from the current character (which becomes the mark) for 
+   * the first <code>&gt;</code> at least <code>min</code> characters beyond the mark
+   * that is immediately preceded by <code>c2 c1</code> (or by just <code>c1</code>
+   * if <code>c1==c2</code> and min is 1). Returns the position of that <code>&gt;</code> in
+   * the window (the current character is left on it), or -1 at end of stream.
+   */
+  protected int scanTo(char c1, char c2, int min)
+  {
+    mark = pos - 1;
+    int i = pos;
+    if (searchStart == mark)
+    { i      = searchPos;
+      chLine = searchLine;
+    }
+    for (;;)
+    { final char[] b = buf;
+      final int    l = limit;
+      final int    m = mark + min;
+      int from = i;
+      while ((i = search.indexOf(b, i, l, '>')) < l)
+      { if (i >= m && b[i - 1] == c1 && (min == 1 || b[i - 2] == c2))
+        { chLine += search.count(b, from, i, '\n');
+          pos = i + 1;
+          ch  = '>';
+          return i;
+        }
+        i++;
+      }
+      chLine += search.count(b, from, l, '\n');
+      pos = i;
+      searched(mark, i, chLine);
+      if (!fill()) return -1;
+      i = pos;
+    }
+  }
+
+  /** 
+   * Note that the search that started at buf[start] has examined buf[..to), up to the given line, 
+   * before refilling the window: in case, when feeding, the input runs out.
+   */
+  protected void searched(int start, int to, int line)
+  {
+    if (feeding)
+    { searchStart = start;
+      searchPos   = to;
+      searchLine  = line;
+    }
+  }
+
+  /**
+   * Note that the token that started at buf[start] has been scanned up to buf[pos] -- the start of
+   * its next segment or entity -- in case, when feeding, the input runs out before it ends.
+   * (A token that starts before the one noted already is an earlier token of the step being resumed.)
+   */
+  protected void scanned(int start)
+  {
+    if (feeding && start >= scannedAnchor)
+    { scannedAnchor     = start;
+      scannedPos        = pos;
+      scannedLine       = chLine;
+      scannedType       = token;
+      scannedMark       = mark;
+      scannedTextStart  = textStart;
+      scannedTextLength = textLength;
+      scannedTextHash   = textHash;
+      scannedTextSaved  = false; // any text saved for an earlier token is now moot
+      if (metrics != null) metrics.save(scannedCounts);
+    }
+  }
+
+  /**
+   * If the token that starts at buf[start] is being resumed, restore its type and text as they were
+   * when it was last <tt>scanned</tt>, read its next character (or entity) from there, and return true.
+   */
+  protected boolean resumeToken(int start)
+  {
+    if (scannedAnchor < 0 || scannedAnchor != start) return false;
+    if (scannedTextSaved)
+    { char[] t = text;
+      text             = scannedText;
+      scannedText      = t;
+      scannedTextSaved = false;
+    }
+    token      = scannedType;
+    mark       = scannedMark;
+    textStart  = scannedTextStart;
+    textLength = scannedTextLength;
+    textHash   = scannedTextHash;
+    pos        = scannedPos;
+    chLine     = scannedLine;
+    if (metrics != null) metrics.restore(scannedCounts);
+    nextChar();
+    return true;
+  }
+
+  /** Does the window at position i start with s */
+  protected boolean startsWith(int i, String s)
+  {
+    int n = s.length();
+    if (i + n > limit) return false;
+    for (int j = 0; j < n; j++)
+      if (buf[i + j] != s.charAt(j)) return false;
+    return true;
+  }
+
+  /** The text of the window from the mark to end (for error reports) */
+  protected String bodyText(int end)
+  {
+    return mark < 0 ? "" : new String(buf, mark, end - mark);
+  }
+
+  /** Note that buf[start..end) belongs to the current token's text */
+  protected void appendRun(int start, int end)
+  {
+    if (textStart < 0 && textLength == 0)
+    { textStart  = start;
+      textLength = end - start;
+    }
+    else appendText(buf, start, end - start);
+  }
+
+  /** Append a string to the current token's text */
+  protected void appendText(String s)
+  {
+    int n = s.length();
+    detachText(n);
+    s.getChars(0, n, text, textLength);
+    textLength += n;
+  }
+
+  /** Append characters to the current token's text */
+  protected void appendText(char[] chars, int start, int n)
+  {
+    detachText(n);
+    System.arraycopy(chars, start, text, textLength, n);
+    textLength += n;
+  }
+
+  /**
+   * Ensure that the token text is in the text buffer, with room
+   * for n more characters.
+   */
+  protected void detachText(int n)
+  {
+    int need = textLength + n;
+    if (need > text.length) text = Arrays.copyOf(text, Math.max(need, 2 * text.length));
+    if (textStart >= 0)
+    { System.arraycopy(buf, textStart, text, 0, textLength);
+      textStart = -1;
+    }
+  }
+
+  /** The current token's text as a String */
+  protected String tokenText()
+  {
+    return textStart < 0 ? new String(text, 0, textLength) : new String(buf, textStart, textLength);
+  }
+
+  /**
+   * Refill the input window from the reader, first moving 
+   * unconsumed (and marked) characters to its start. 
+   * Returns false at end of stream.
+   */
+  protected boolean fill()
+  {
+    if (eos || hidden >= 0) return false;
+    if (feeding)
+    { if (!inputEnded) throw NEED_INPUT;
+      eos = true;
+      return false;
+    }
+    int keep = mark >= 0 && mark < pos ? mark : pos;
+    if (keep > 0)
+    { System.arraycopy(buf, keep, buf, 0, limit - keep);
+      limit -= keep;
+      pos   -= keep;
+      if (mark >= 0)      mark      -= keep;
+      if (textStart >= 0) textStart -= keep;
+    }
+    if (buf.length - limit < 2) buf = Arrays.copyOf(buf, 2 * buf.length);
+    try
+    {
+      int n;
+      if (bytes != null)
+        n = decode(buf, limit, buf.length - limit);
+      else
+        do n = reader.read(buf, limit, buf.length - limit); while (n == 0);
+      if (n < 0)
+      { eos = true;
+        return false;
+      }
+      int from = limit;
+      limit += n;
+      if (metrics != null) metrics.chars += n;
+      if (streaming && delimiter >= 0)
+      { hideFrom(from);
+        return limit > from;
+      }
+      return true;
+    }
+    catch (IOException ex)
+    {
+      throw new RuntimeException(ex);
+    }
+  }
+
+  /**
+   * Decode UTF-8 from <tt>bytes</tt> into out[off..off+len), mapping the 
+   * next region of the channel (if any) when <tt>bytes</tt> is exhausted.
+   * Returns the number of characters decoded (at least one), or -1 at
+   * the end of the input. Malformed sequences decode as U+FFFD.
+   */
+  protected int decode(char[] out, int off, int len) throws IOException
+  {
+    final ByteBuffer in = bytes;
+    final int lim = in.limit(), end = off + len - 1; // room for a surrogate pair
+    int p = in.position(), n = off, start = p;
+    while (n < end && p < lim)
+    {
+      int b = in.get(p);
+      if (b >= 0)
+      { out[n++] = (char) b;
+        p++;
+        continue;
+      }
+      int need = (b & 0xE0) == 0xC0 ? 1 : (b & 0xF0) == 0xE0 ? 2 : (b & 0xF8) == 0xF0 ? 3 : 0;
+      if (p + need >= lim && (channel != null && channelBase + lim < channelSize || feeding && !inputEnded)) break; // sequence straddles regions (or buffers fed)
+      int c = need == 1 ? b & 0x1F : need == 2 ? b & 0x0F : b & 0x07, q = p + 1;
+      for (int i = 0; i < need && q < lim; i++, q++)
+      { int d = in.get(q);
+        if ((d & 0xC0) != 0x80) break;
+        c = (c << 6) | (d & 0x3F);
+      }
+      if (need == 0 || q != p + 1 + need)
+      { out[n++] = '\uFFFD';
+        p++;
+      }
+      else
+      { if (c >= 0x10000)
+        { out[n++] = Character.highSurrogate(c);
+          out[n++] = Character.lowSurrogate(c);
+        }
+        else out[n++] = (char) c;
+        p = q;
+      }
+    }
+    in.position(p);
+    if (metrics != null) metrics.bytes += p - start;
+    if (n > off) return n - off;
+    if (channel != null && channelBase + p < channelSize)
+    { channelBase += p;
+      bytes = channel.map(FileChannel.MapMode.READ_ONLY, channelBase, Math.min(channelSize - channelBase, REGION_SIZE));
+      return decode(out, off, len);
+    }
+    return -1;
   }
 
   /** Read the next character -- expanding entities */
@@ -404,84 +1885,130 @@ public class XMLScanner
    */
   protected void nextRawChar()
   {
-    try
+    if (pos < limit || fill())
     {
-      ch = reader.read();
+      ch = buf[pos++];
       if (ch == '\n')
         chLine++;
     }
-    catch (Exception ex)
-    {
-      throw new RuntimeException(ex);
-    }
+    else ch = -1;
   }
 
   /**
    * Read and expand the next entity; the variable 'entity'
-   * is set to the expansion.
+   * is set to the expansion. The handler's <tt>decodeEntity</tt> is consulted
+   * first, but only once for each name in a document: its decodings are cached in
+   * <tt>decoded</tt>, which is looked up without making a String of the name. Entities
+   * the handler does not decode are character references, or are looked up in the
+   * entity table, then among the entities declared by the document.
    */
   protected void nextEnt()
   {
-    String ent = ""; entity = null;
+    char[] e = entName;
+    int    n = 0, h = 0;
+    entity = null;
     nextRawChar();
     while (' ' < ch && ch != ';')
     {
-      ent = ent + ((char) ch);
+      if (n == e.length) e = entName = Arrays.copyOf(e, 2 * n);
+      e[n++] = (char) ch;
+      h = 31 * h + ch;
       nextRawChar();
-    }         
-    entity = handler.decodeEntity(ent);
-    if (entity == null) entity = decodeDefaultEntity(tokenLine, ent);
-    if (entity == null)     
-      throw new XMLSyntax(tokenLine, "Unknown entity: &" + ent + ";");
+    }
+    String d = decoded.get(e, 0, n, h);
+    if (d == null)
+    {
+      String name = new String(e, 0, n);
+      d = handler.decodeEntity(name);
+      if (d == null) d = UNDECODED;
+      decoded.put(name, d);
+    }
+    if (d != UNDECODED)
+      entity = d;
+    else if (n > 0 && e[0] == '#')
+    {
+      entity = EntityTable.decodeCharacter(e, 1, n - 1);
+      if (entity == null)
+        throw new XMLSyntax(tokenLine, "Ill-formed numeric entity: &" + new String(e, 0, n) + ";");
+    }
+    else
+    {
+      entity = entities.get(e, 0, n, h);
+      if (entity == null && declared.count > 0) entity = declared.get(e, 0, n, h);
+      if (entity == null)     
+        throw new XMLSyntax(tokenLine, "Unknown entity: &" + new String(e, 0, n) + ";");
+    }
+    if (metrics != null) metrics.entities++;
   }
-  
-  /** Default simple entity decoding */
-  public static String decodeDefaultEntity(int tokenLine, String ent)
+
+  /**
+   * Record the internal general entities, <tt>&lt;!ENTITY name "value"></tt>,
+   * declared in the DOCTYPE whose body is buf[from..to). As in XML, the
+   * first declaration of an entity is binding; character references in
+   * the value are expanded, other references are not.
+   */
+  protected void declareEntities(int from, int to)
   {
-    if (ent.equals("amp"))
-      return "&";
-    else if (ent.equals("lt"))
-      return "<";
-    else if (ent.equals("gt"))
-      return ">";
-    else if (ent.equals("apos"))
-      return "'";
-    else if (ent.equals("quot"))
-      return "\"";
-    else if (ent.equals("nbsp"))
-      return " ";
-    else if (ent.startsWith("#"))
-      try
+    final char[] b = buf;
+    for (int i = from; i < to; i++)
+    {
+      if (b[i] == '<' && i + 8 < to && startsWith(i, "<!ENTITY") && b[i + 8] <= ' ')
       {
-        return ""+(char) Integer.parseInt(ent.substring(1));
+        int j = i + 8;
+        while (j < to && b[j] <= ' ') j++;
+        if (j < to && b[j] == '%') continue; // a parameter entity
+        int nameStart = j;
+        while (j < to && b[j] > ' ' && b[j] != '"' && b[j] != '\'' && b[j] != '>') j++;
+        int nameEnd = j;
+        while (j < to && b[j] <= ' ') j++;
+        if (nameEnd == nameStart || j == to || (b[j] != '"' && b[j] != '\'')) continue; // an external entity
+        char quote = b[j++];
+        int  valueStart = j;
+        while (j < to && b[j] != quote) j++;
+        if (j == to) break;
+        declared.putIfAbsent(new String(b, nameStart, nameEnd - nameStart), expandCharacters(b, valueStart, j));
+        i = j;
       }
-      catch (NumberFormatException ex)
-      {
-         throw new XMLSyntax(tokenLine, "Ill-formed numeric entity: &" + ent + ";");
+      else if (b[i] == '<' && i + 3 < to && startsWith(i, "<!--"))
+      { // Skip a comment
+        int j = i + 4;
+        while (j + 2 < to && !(b[j] == '-' && b[j + 1] == '-' && b[j + 2] == '>')) j++;
+        i = j + 2;
       }
-    else return null;
-  }
-
-  protected static boolean endComment(StringBuilder b)
-  {
-    int s = b.length();
-    return s > 4 && b.charAt(s - 1) == '>' && b.charAt(s - 2) == '-' && b.charAt(s - 3) == '-';
-  }
-
-  protected static boolean isComment(StringBuilder b)
-  {
-    return endComment(b) && b.charAt(0) == '-' && b.charAt(1) == '-';
+    }
   }
 
-  protected static boolean endCDATA(StringBuilder b)
+  /** The text of b[from..to), with its character references expanded */
+  protected static String expandCharacters(char[] b, int from, int to)
   {
-    int s = b.length();
-    return s > 4 && b.charAt(s - 1) == '>' && b.charAt(s - 2) == ']' && b.charAt(s - 3) == ']';
+    StringBuilder s = null;
+    int last = from;
+    for (int i = from; i < to; i++)
+      if (b[i] == '&' && i + 1 < to && b[i + 1] == '#')
+      {
+        int end = i + 2;
+        while (end < to && b[end] != ';') end++;
+        String c = end < to ? EntityTable.decodeCharacter(b, i + 2, end - i - 2) : null;
+        if (c == null) continue;
+        if (s == null) s = new StringBuilder(to - from);
+        s.append(b, last, i - last).append(c);
+        i = end;
+        last = end + 1;
+      }
+    if (s == null) return new String(b, from, to - from);
+    return s.append(b, last, to - last).toString();
   }
-
-  protected static boolean isCDATA(StringBuilder b)
+  
+  /** Default simple entity decoding: the predefined entities and character references */
+  public static String decodeDefaultEntity(int tokenLine, String ent)
   {
-    return endCDATA(b) && (b.length() > 7) && b.substring(0, 7).equals("[CDATA[");
+    if (ent.startsWith("#"))
+    {
+      String c = EntityTable.decodeCharacter(ent.substring(1));
+      if (c == null) throw new XMLSyntax(tokenLine, "Ill-formed numeric entity: &" + ent + ";");
+      return c;
+    }
+    return EntityTable.DEFAULTS.get(ent);
   }
 
   /** A test rig that prints lexical events, one per line. */
@@ -542,22 +2069,248 @@ public class XMLScanner
     new XMLScanner(sax).read(new InputStreamReader(System.in));
   }
 
+  /**
+   * A reusable CharSequence that is a window on a character array.
+   * Its content changes whenever the scanner that delivered it moves on.
+   */
+  public static final class TextView implements CharSequence
+  {
+    private char[] chars;
+    private int    start, length;
+
+    TextView set(char[] chars, int start, int length)
+    {
+      this.chars  = chars;
+      this.start  = start;
+      this.length = length;
+      return this;
+    }
+
+    public int length()
+    {
+      return length;
+    }
+
+    public char charAt(int index)
+    {
+      if (index < 0 || index >= length) throw new IndexOutOfBoundsException("" + index);
+      return chars[start + index];
+    }
+
+    public CharSequence subSequence(int from, int to)
+    {
+      if (from < 0 || to > length || from > to) throw new IndexOutOfBoundsException(from + ".." + to);
+      return new String(chars, start + from, to - from);
+    }
+
+    /** Is the content the same as that of s */
+    public boolean contentEquals(CharSequence s)
+    {
+      if (s.length() != length) return false;
+      for (int i = 0; i < length; i++)
+        if (chars[start + i] != s.charAt(i)) return false;
+      return true;
+    }
+
+    /** Copy the content into dst at the given offset */
+    public void getChars(char[] dst, int offset)
+    {
+      System.arraycopy(chars, start, dst, offset, length);
+    }
+
+    public String toString()
+    {
+      return new String(chars, start, length);
+    }
+  }
+
   /**
    * An implementation of Map that /shows/ attribute values in
    * properly-quoted XML form. The values are actually stored
    * is normalized (sequence-of-UTF8 characters) form. 
+   * <p>
+   * Names and values are kept, in order of insertion, in parallel arrays
+   * that are searched linearly (elements seldom have more than a
+   * handful of attributes); so building, clearing and reusing an
+   * <tt>Attributes</tt> allocates nothing once its arrays are big enough.
+   * Map entries are made only when the <tt>entrySet()</tt> is used.
    */
-  public static class Attributes extends LinkedHashMap<String, String>
+  public static class Attributes extends AbstractMap<String, String>
   {
+    protected String[] names, values;
+    protected int      size;
+
+    public Attributes()
+    {
+      this(8);
+    }
+
+    public Attributes(int capacity)
+    {
+      names  = new String[Math.max(1, capacity)];
+      values = new String[names.length];
+    }
+
+    /** A copy of the given map */
+    public Attributes(Map<String, String> map)
+    {
+      this(map.size());
+      if (map instanceof Attributes)
+      {
+        Attributes atts = (Attributes) map;
+        System.arraycopy(atts.names, 0, names, 0, atts.size);
+        System.arraycopy(atts.values, 0, values, 0, atts.size);
+        size = atts.size;
+      }
+      else putAll(map);
+    }
+
+    /** A copy of this map (that will not change when this is reused) */
+    public Attributes copy()
+    {
+      return new Attributes(this);
+    }
+
+    public int size()
+    {
+      return size;
+    }
+
+    /** Name of the i'th attribute */
+    public String name(int i)
+    {
+      if (i >= size) throw new IndexOutOfBoundsException("" + i);
+      return names[i];
+    }
+
+    /** Value of the i'th attribute */
+    public String value(int i)
+    {
+      if (i >= size) throw new IndexOutOfBoundsException("" + i);
+      return values[i];
+    }
+
+    /** Position of the named attribute, or -1 */
+    public int indexOf(Object key)
+    {
+      for (int i = 0; i < size; i++)
+        if (names[i] == key) return i;
+      if (key != null)
+        for (int i = 0; i < size; i++)
+          if (key.equals(names[i])) return i;
+      return -1;
+    }
+
+    public boolean containsKey(Object key)
+    {
+      return indexOf(key) >= 0;
+    }
+
+    public String get(Object key)
+    {
+      int i = indexOf(key);
+      return i < 0 ? null : values[i];
+    }
+
+    public String put(String key, String value)
+    {
+      int i = indexOf(key);
+      if (i >= 0)
+      {
+        String old = values[i];
+        values[i] = value;
+        return old;
+      }
+      if (size == names.length)
+      {
+        names  = Arrays.copyOf(names, 2 * size);
+        values = Arrays.copyOf(values, 2 * size);
+      }
+      names[size]  = key;
+      values[size] = value;
+      size++;
+      return null;
+    }
+
+    public String remove(Object key)
+    {
+      int i = indexOf(key);
+      if (i < 0) return null;
+      String old = values[i];
+      removeAt(i);
+      return old;
+    }
+
+    protected void removeAt(int i)
+    {
+      System.arraycopy(names, i + 1, names, i, size - i - 1);
+      System.arraycopy(values, i + 1, values, i, size - i - 1);
+      size--;
+      names[size] = values[size] = null;
+    }
+
+    public void clear()
+    {
+      Arrays.fill(names, 0, size, null);
+      Arrays.fill(values, 0, size, null);
+      size = 0;
+    }
+
+    public Set<Map.Entry<String, String>> entrySet()
+    {
+      return new AbstractSet<Map.Entry<String, String>>()
+      {
+        public int size()
+        {
+          return size;
+        }
+
+        public Iterator<Map.Entry<String, String>> iterator()
+        {
+          return new Iterator<Map.Entry<String, String>>()
+          {
+            int next = 0, last = -1;
+
+            public boolean hasNext()
+            {
+              return next < size;
+            }
+
+            public Map.Entry<String, String> next()
+            {
+              if (next >= size) throw new NoSuchElementException();
+              final int i = last = next++;
+              return new AbstractMap.SimpleEntry<String, String>(names[i], values[i])
+              {
+                public String setValue(String value)
+                {
+                  values[i] = value;
+                  return super.setValue(value);
+                }
+              };
+            }
+
+            public void remove()
+            {
+              if (last < 0) throw new IllegalStateException();
+              removeAt(last);
+              next = last;
+              last = -1;
+            }
+          };
+        }
+      };
+    }
+
     public String toString()
     {
       StringBuilder b = new StringBuilder();
-      for (String key : keySet())
+      for (int i = 0; i < size; i++)
       {
         b.append(" ");
-        b.append(key);
+        b.append(names[i]);
         b.append("='");
-        b.append(unQuote(get(key)));
+        b.append(unQuote(values[i]));
         b.append("'");
       }
       return b.toString();
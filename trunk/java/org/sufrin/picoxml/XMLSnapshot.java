@@ -0,0 +1,314 @@
+package org.sufrin.picoxml;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * An XMLSnapshot is a compact binary encoding of an AppTree, from which the
+ * tree can be rebuilt much faster than by parsing its XML: there is no
+ * tokenizing, no entity decoding, and every element and attribute name (and every
+ * distinct attribute value) is decoded only once. A snapshot can be read straight
+ * from a memory-mapped file.
+ * <p>
+ * A snapshot (whose integers are little-endian) consists of
+ * <ul>
+ * <li> a header: the magic number <tt>MAGIC</tt>;
+ * <li> the name table: the number of names, then each name;
+ * <li> the value table: the number of distinct attribute values, then each value;
+ * <li> the tree, as structural records in document order. An element is its tag
+ *      (<tt>ELEMENT</tt>), the index of its name, the number of its attributes plus one (or 0 if it has no map),
+ *      the name and value indexes of each attribute, the records of its subtrees, and <tt>END</tt>.
+ *      A text is its tag (<tt>PCDATA</tt>, with the flags <tt>CDATA</tt> and <tt>RUN</tt> as
+ *      appropriate, or <tt>COMMENT</tt> or <tt>PI</tt>), then its characters.
+ * </ul>
+ * Counts and indexes are unsigned variable-length integers (7 bits per byte, least significant
+ * first); strings are their UTF-8 encoding preceded by its length in bytes.
+ */
+public class XMLSnapshot
+{
+  /** "PXS1" */
+  public static final int MAGIC = 0x31535850;
+
+  /** Record tags */
+  protected static final int END = 0, ELEMENT = 1, PCDATA = 2, COMMENT = 3, PI = 4, CDATA = 0x10, RUN = 0x20;
+
+  /** Write a snapshot of the tree to the given stream (which is not closed) */
+  public static void write(AppTree tree, OutputStream out) throws IOException
+  {
+    new Encoder().write(tree, out);
+  }
+
+  /** Write a snapshot of the tree to the file at the given path */
+  public static void write(AppTree tree, Path path) throws IOException
+  {
+    try (OutputStream out = Files.newOutputStream(path))
+    {
+      write(tree, out);
+    }
+  }
+
+  /** Read the tree from the snapshot in bytes[position..limit), leaving the position after it */
+  public static AppTree read(ByteBuffer bytes)
+  {
+    ByteBuffer in = bytes.slice().order(ByteOrder.LITTLE_ENDIAN);
+    try
+    {
+      AppTree tree = new Decoder(in).read();
+      bytes.position(bytes.position() + in.position());
+      return tree;
+    }
+    catch (BufferUnderflowException ex)
+    {
+      throw new IllegalArgumentException("Truncated snapshot");
+    }
+    catch (IndexOutOfBoundsException ex)
+    {
+      throw new IllegalArgumentException("Malformed snapshot: " + ex.getMessage());
+    }
+  }
+
+  /** Read the tree from the snapshot in the file at the given path, which is memory-mapped */
+  public static AppTree read(Path path) throws IOException
+  {
+    try (FileChannel chan = FileChannel.open(path, StandardOpenOption.READ))
+    {
+      if (chan.size() > Integer.MAX_VALUE) throw new IOException("Snapshot too large to map: " + path);
+      return read(chan.map(FileChannel.MapMode.READ_ONLY, 0, chan.size()));
+    }
+  }
+
+  /** Encodes a tree: the tree's records are encoded as its names and values are collected */
+  protected static class Encoder
+  {
+    protected final Map<String, Integer> names  = new HashMap<String, Integer>();
+    protected final Map<String, Integer> values = new HashMap<String, Integer>();
+    protected final List<String>         nameList = new ArrayList<String>(), valueList = new ArrayList<String>();
+    protected byte[]                     body = new byte[8192];
+    protected int                        count;
+
+    void write(AppTree tree, OutputStream out) throws IOException
+    {
+      record(tree);
+      byte[] records = body;
+      int    length  = count;
+      body  = new byte[8192];
+      count = 0;
+      putInt(MAGIC);
+      putTable(nameList);
+      putTable(valueList);
+      out.write(body, 0, count);
+      out.write(records, 0, length);
+      out.flush();
+    }
+
+    void record(AppTree tree)
+    {
+      if (tree instanceof AppElement)
+      {
+        AppElement element = (AppElement) tree;
+        put(ELEMENT);
+        putNat(index(names, nameList, element.kind));
+        Map<String, String> attrs = element.attrs;
+        if (attrs == null)
+          putNat(0);
+        else
+        {
+          putNat(attrs.size() + 1);
+          for (Map.Entry<String, String> e : attrs.entrySet())
+          {
+            putNat(index(names, nameList, e.getKey()));
+            putNat(index(values, valueList, e.getValue()));
+          }
+        }
+        for (AppTree t : element) record(t);
+        put(END);
+      }
+      else if (tree instanceof AppComment)
+        putText(COMMENT, ((AppText) tree).text);
+      else if (tree instanceof AppPI)
+        putText(PI, ((AppText) tree).text);
+      else if (tree instanceof AppPCData)
+      {
+        AppPCData text = (AppPCData) tree;
+        putText(PCDATA | (text.cdata ? CDATA : 0) | (text.run ? RUN : 0), text.text);
+      }
+      else if (tree instanceof AppText)
+        putText(PCDATA, ((AppText) tree).text);
+      else if (tree != null)
+        putText(PCDATA, tree.toString());
+    }
+
+    static int index(Map<String, Integer> table, List<String> list, String s)
+    {
+      Integer i = table.get(s);
+      if (i == null)
+      {
+        table.put(s, i = list.size());
+        list.add(s);
+      }
+      return i;
+    }
+
+    void room(int n)
+    {
+      if (body.length - count < n) body = Arrays.copyOf(body, Math.max(2 * body.length, count + n));
+    }
+
+    void put(int b)
+    {
+      room(1);
+      body[count++] = (byte) b;
+    }
+
+    void putInt(int n)
+    {
+      room(4);
+      for (int i = 0; i < 4; i++, n >>>= 8) body[count++] = (byte) n;
+    }
+
+    void putNat(int n)
+    {
+      room(5);
+      while ((n & ~0x7F) != 0)
+      {
+        body[count++] = (byte) (n & 0x7F | 0x80);
+        n >>>= 7;
+      }
+      body[count++] = (byte) n;
+    }
+
+    void putString(String s)
+    {
+      byte[] utf8 = s.getBytes(StandardCharsets.UTF_8);
+      putNat(utf8.length);
+      room(utf8.length);
+      System.arraycopy(utf8, 0, body, count, utf8.length);
+      count += utf8.length;
+    }
+
+    void putText(int tag, String text)
+    {
+      put(tag);
+      putString(text);
+    }
+
+    void putTable(List<String> table)
+    {
+      putNat(table.size());
+      for (String s : table) putString(s);
+    }
+  }
+
+  /** Decodes a snapshot from a little-endian buffer */
+  protected static class Decoder
+  {
+    protected final ByteBuffer bytes;
+    protected String[]         names, values;
+    /** Holds the bytes of a string when they cannot be decoded in place */
+    protected byte[]           scratch = new byte[256];
+
+    Decoder(ByteBuffer bytes)
+    {
+      this.bytes = bytes;
+    }
+
+    AppTree read()
+    {
+      if (bytes.remaining() < 4 || bytes.getInt() != MAGIC) throw new IllegalArgumentException("Not a snapshot");
+      names  = getTable();
+      values = getTable();
+      // The open elements
+      AppElement[] open  = new AppElement[32];
+      int          depth = 0;
+      AppTree      root  = null;
+      do
+      {
+        int     tag = bytes.get();
+        AppTree tree;
+        switch (tag & 0xF)
+        {
+          case END:
+            if (depth == 0) throw new IllegalArgumentException("Malformed snapshot: unmatched END");
+            depth--;
+            continue;
+          case ELEMENT:
+            tree = new AppElement(names[getNat()], getAttributes());
+          break;
+          case PCDATA:
+            tree = new AppPCData(getString(), (tag & CDATA) != 0, (tag & RUN) != 0);
+          break;
+          case COMMENT:
+            tree = new AppComment(getString());
+          break;
+          case PI:
+            tree = new AppPI(getString());
+          break;
+          default:
+            throw new IllegalArgumentException("Malformed snapshot: tag " + tag);
+        }
+        if (depth == 0)
+          root = tree;
+        else
+          open[depth - 1].subtrees.add(tree);
+        if (tree instanceof AppElement)
+        {
+          if (depth == open.length) open = Arrays.copyOf(open, 2 * depth);
+          open[depth++] = (AppElement) tree;
+        }
+      }
+      while (depth > 0);
+      return root;
+    }
+
+    Map<String, String> getAttributes()
+    {
+      int n = getNat() - 1;
+      if (n < 0) return null;
+      XMLScanner.Attributes atts = new XMLScanner.Attributes(n);
+      for (int i = 0; i < n; i++)
+      {
+        atts.names[i]  = names[getNat()];
+        atts.values[i] = values[getNat()];
+      }
+      atts.size = n;
+      return atts;
+    }
+
+    int getNat()
+    {
+      int n = 0;
+      for (int shift = 0; ; shift += 7)
+      {
+        int b = bytes.get();
+        n |= (b & 0x7F) << shift;
+        if (b >= 0) return n;
+      }
+    }
+
+    String getString()
+    {
+      int n = getNat();
+      if (bytes.hasArray())
+      {
+        int p = bytes.position();
+        if (n > bytes.limit() - p) throw new BufferUnderflowException();
+        bytes.position(p + n);
+        return new String(bytes.array(), bytes.arrayOffset() + p, n, StandardCharsets.UTF_8);
+      }
+      if (scratch.length < n) scratch = new byte[Math.max(n, 2 * scratch.length)];
+      bytes.get(scratch, 0, n);
+      return new String(scratch, 0, n, StandardCharsets.UTF_8);
+    }
+
+    String[] getTable()
+    {
+      String[] table = new String[getNat()];
+      for (int i = 0; i < table.length; i++) table[i] = getString();
+      return table;
+    }
+  }
+}
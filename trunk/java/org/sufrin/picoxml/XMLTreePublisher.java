@@ -0,0 +1,65 @@
+package org.sufrin.picoxml;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.Executor;
+
+/**
+ * An XMLTreePublisher&lt;T> publishes the records of a document: the trees,
+ * of type <tt>T</tt>, of the elements that match a path (as for an
+ * XMLRecordParser), each as soon as it has been closed. The document is
+ * scanned only as far as is needed to complete the records that have been requested.
+ */
+public class XMLTreePublisher<T> extends XMLPublisher<T>
+{
+  protected final XMLScanner scanner;
+  /** Records completed by the last step of the scanner, and not yet published */
+  protected final ArrayDeque<T> completed = new ArrayDeque<T>();
+
+  protected XMLTreePublisher(XMLTreeFactory<T> factory, String path, Executor executor)
+  {
+    super(executor);
+    XMLRecordParser<T> parser = new XMLRecordParser<T>(factory, path, new java.util.function.Consumer<T>()
+    {
+      public void accept(T record)
+      {
+        completed.add(record);
+      }
+    });
+    this.scanner = new XMLScanner(parser);
+  }
+
+  /** Publish the records, matching path, of the XML read from the given Reader */
+  public XMLTreePublisher(XMLTreeFactory<T> factory, String path, Reader reader, Executor executor)
+  {
+    this(factory, path, executor);
+    scanner.open(reader);
+  }
+
+  /** Publish the records, matching path, of the UTF-8 encoded XML in bytes[position..limit) */
+  public XMLTreePublisher(XMLTreeFactory<T> factory, String path, ByteBuffer bytes, Executor executor)
+  {
+    this(factory, path, executor);
+    scanner.open(bytes);
+  }
+
+  /** Publish the records, matching path, of the UTF-8 encoded XML in the given (memory-mapped) file */
+  public XMLTreePublisher(XMLTreeFactory<T> factory, String path, Path file, Executor executor) throws IOException
+  {
+    this(factory, path, executor);
+    scanner.open(file);
+  }
+
+  protected T read()
+  {
+    while (completed.isEmpty() && scanner.step()) continue;
+    return completed.poll();
+  }
+
+  protected void close()
+  {
+    scanner.close();
+  }
+}
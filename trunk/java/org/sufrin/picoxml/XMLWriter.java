@@ -0,0 +1,453 @@
+package org.sufrin.picoxml;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.*;
+
+/**
+ * An XMLWriter writes XML text: either from an AppTree, or from the events
+ * delivered to it as an XMLHandler (so it can be driven directly by an
+ * XMLScanner, or by a program generating a document). Markup and escaped text are written
+ * into a reusable char buffer, which is written out either to a Writer or
+ * (encoded as UTF-8, without an intermediate CharsetEncoder) to a WritableByteChannel.
+ * <p>
+ * In compact mode (the default) no whitespace is added. In pretty mode (<tt>setIndent(n)</tt>
+ * with n > 0) each start tag, comment, and PI starts on a new line, indented by n spaces
+ * per level of nesting; so does an end tag that follows a subelement.
+ * Adjacent PCDATA are separated by a space, since by default the scanner
+ * delivers the words of a text, and not the space between them; unless the PCDATA
+ * are whole runs of text (<tt>setTextRuns</tt>, or AppPCData that are runs), which carry their own white space.
+ * <p>
+ * A start tag is written only when the next event arrives, so
+ * that &lt;kind/> can be written for an element with no content.
+ */
+public class XMLWriter implements XMLHandler, Flushable, Closeable
+{
+  /** A precomputed run of spaces for indentation */
+  protected static final char[] SPACES = new char[256];
+  static { Arrays.fill(SPACES, ' '); }
+
+  /** Write n spaces to out (none if n is not positive) */
+  public static void indent(Writer out, int n)
+  {
+    if (n <= 0) return;
+    try
+    {
+      for (; n > SPACES.length; n -= SPACES.length) out.write(SPACES, 0, SPACES.length);
+      out.write(SPACES, 0, n);
+    }
+    catch (IOException ex)
+    {
+      throw new UncheckedIOException(ex);
+    }
+  }
+
+  protected final Writer              writer;
+  protected final WritableByteChannel channel;
+  protected final char[]              buf = new char[8192];
+  protected int                       count;
+  protected ByteBuffer                bytes;
+
+  /** Spaces per level of nesting (0 for compact output) */
+  protected int     indent;
+  /** Number of elements open */
+  protected int     depth;
+  /** A start tag has been written, except for its closing bracket */
+  protected boolean startPending;
+  /** The last thing written was PCDATA; the last thing written was a line break or markup */
+  protected boolean afterText, afterMarkup;
+  /** PCDATA are whole runs of text, so are not separated by spaces */
+  protected boolean textRuns;
+  /** Names of the open elements (when driven by events) */
+  protected final ArrayDeque<String> open = new ArrayDeque<String>();
+
+  /** Write characters to the given Writer */
+  public XMLWriter(Writer writer)
+  {
+    this.writer  = writer;
+    this.channel = null;
+  }
+
+  /** Write UTF-8 to the given channel */
+  public XMLWriter(WritableByteChannel channel)
+  {
+    this.writer  = null;
+    this.channel = channel;
+    this.bytes   = ByteBuffer.allocate(3 * buf.length);
+  }
+
+  /** Write UTF-8 to the given stream */
+  public XMLWriter(OutputStream stream)
+  {
+    this(Channels.newChannel(stream));
+  }
+
+  /** Indent by n spaces per level of nesting (n = 0 for compact output) */
+  public XMLWriter setIndent(int n)
+  {
+    indent = Math.max(0, n);
+    return this;
+  }
+
+  public int getIndent()
+  {
+    return indent;
+  }
+
+  /** The PCDATA delivered are whole runs of text (as from a scanner whose TextMode is not WORDS), so are not to be separated */
+  public XMLWriter setTextRuns(boolean textRuns)
+  {
+    this.textRuns = textRuns;
+    return this;
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  //
+  //                     Trees
+  //
+  ////////////////////////////////////////////////////////////////////////
+
+  /** Write the given tree; for a root (an element whose kind is "") write just its subtrees */
+  public XMLWriter write(AppTree tree)
+  {
+    if (tree instanceof AppElement)
+    {
+      AppElement element = (AppElement) tree;
+      if (element.kind.length() == 0)
+        for (AppTree t : element) write(t);
+      else
+      {
+        startElement(element.kind, element.attrs);
+        for (AppTree t : element) write(t);
+        endElement(element.kind);
+      }
+    }
+    else if (tree instanceof AppComment)
+      acceptComment(((AppText) tree).text);
+    else if (tree instanceof AppPI)
+      acceptPI(((AppText) tree).text);
+    else if (tree instanceof AppPCData)
+    {
+      AppPCData text = (AppPCData) tree;
+      if (text.run) afterText = false; // a run carries its own white space
+      acceptPCDATA(text.text, text.cdata);
+    }
+    else if (tree instanceof AppText)
+      acceptPCDATA(((AppText) tree).text, false);
+    else if (tree != null)
+      acceptPCDATA(tree.toString(), false);
+    return this;
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  //
+  //                     Events
+  //
+  ////////////////////////////////////////////////////////////////////////
+
+  public void startDocument()
+  {
+    count        = 0;
+    depth        = 0;
+    startPending = false;
+    afterText    = false;
+    afterMarkup  = false;
+    open.clear();
+  }
+
+  public void endDocument()
+  {
+    closeStart();
+    if (indent > 0 && afterMarkup) put('\n');
+    flush();
+  }
+
+  public void startElement(String kind, Map<String, String> atts)
+  {
+    closeStart();
+    newLine(depth);
+    put('<');
+    put(kind);
+    if (atts instanceof XMLScanner.Attributes)
+    {
+      XMLScanner.Attributes attributes = (XMLScanner.Attributes) atts;
+      for (int i = 0; i < attributes.size(); i++)
+        attribute(attributes.name(i), attributes.value(i));
+    }
+    else if (atts != null)
+      for (Map.Entry<String, String> entry : atts.entrySet())
+        attribute(entry.getKey(), entry.getValue());
+    startPending = true;
+    afterText    = false;
+    afterMarkup  = true;
+    depth++;
+    open.push(kind);
+  }
+
+  public void endElement(String kind)
+  {
+    if (open.isEmpty()) throw new IllegalStateException(String.format("Unexpected </%s>", kind));
+    open.pop();
+    depth--;
+    if (startPending)
+    {
+      put("/>");
+      startPending = false;
+    }
+    else
+    {
+      if (afterMarkup) newLine(depth);
+      put("</");
+      put(kind);
+      put('>');
+    }
+    afterText   = false;
+    afterMarkup = true;
+  }
+
+  public void acceptPCDATA(CharSequence text, boolean cdata)
+  {
+    closeStart();
+    if (afterText && !textRuns) put(' ');
+    if (cdata)
+    {
+      put("<![CDATA[");
+      // A "]]>" within the text must be split across two sections
+      int from = 0, len = text.length();
+      for (int i = 0; i + 2 < len; i++)
+        if (text.charAt(i) == ']' && text.charAt(i + 1) == ']' && text.charAt(i + 2) == '>')
+        {
+          put(text, from, i + 2);
+          put("]]><![CDATA[");
+          from = i + 2;
+        }
+      put(text, from, len);
+      put("]]>");
+    }
+    else
+      escape(text, false);
+    afterText   = true;
+    afterMarkup = false;
+  }
+
+  public void acceptComment(CharSequence text)
+  {
+    closeStart();
+    newLine(depth);
+    put("<!--");
+    put(text, 0, text.length());
+    put("-->");
+    afterText   = false;
+    afterMarkup = true;
+  }
+
+  public void acceptPI(CharSequence text)
+  {
+    closeStart();
+    newLine(depth);
+    put("<?");
+    put(text, 0, text.length());
+    put("?>");
+    afterText   = false;
+    afterMarkup = true;
+  }
+
+  public void acceptDTD(CharSequence text)
+  {
+    if (text.length() == 0) return;
+    closeStart();
+    newLine(depth);
+    put("<!DOCTYPE ");
+    put(text, 0, text.length());
+    put('>');
+    afterText   = false;
+    afterMarkup = true;
+  }
+
+  public String decodeEntity(String entity)
+  {
+    return null;
+  }
+
+  ////////////////////////////////////////////////////////////////////////
+  //
+  //                     Output
+  //
+  ////////////////////////////////////////////////////////////////////////
+
+  protected void closeStart()
+  {
+    if (startPending)
+    {
+      put('>');
+      startPending = false;
+    }
+  }
+
+  /** In pretty mode, start a new line indented to the given depth (unless nothing has been written) */
+  protected void newLine(int level)
+  {
+    if (indent == 0) return;
+    if (afterText || afterMarkup) put('\n');
+    for (int n = level * indent; n > 0; n -= SPACES.length)
+      put(SPACES, Math.min(n, SPACES.length));
+  }
+
+  protected void attribute(String name, String value)
+  {
+    put(' ');
+    put(name);
+    put("=\"");
+    escape(value, true);
+    put('"');
+  }
+
+  /** Write text, escaping the characters that cannot appear literally (in an attribute value, if attr) */
+  protected void escape(CharSequence text, boolean attr)
+  {
+    int from = 0, len = text.length();
+    for (int i = 0; i < len; i++)
+    {
+      char   c = text.charAt(i);
+      String entity;
+      switch (c)
+      {
+        case '&': entity = "&amp;"; break;
+        case '<': entity = "&lt;"; break;
+        case '>': entity = "&gt;"; break;
+        case '"': if (attr) { entity = "&quot;"; break; } else continue;
+        case '\n': if (attr) { entity = "&#10;"; break; } else continue;
+        case '\t': if (attr) { entity = "&#9;"; break; } else continue;
+        case '\r': entity = "&#13;"; break;
+        default: continue;
+      }
+      put(text, from, i);
+      put(entity);
+      from = i + 1;
+    }
+    put(text, from, len);
+  }
+
+  protected void put(char c)
+  {
+    if (count == buf.length) flushBuffer();
+    buf[count++] = c;
+  }
+
+  protected void put(String s)
+  {
+    put(s, 0, s.length());
+  }
+
+  protected void put(char[] cs, int len)
+  {
+    for (int from = 0; from < len;)
+    {
+      if (count == buf.length) flushBuffer();
+      int n = Math.min(len - from, buf.length - count);
+      System.arraycopy(cs, from, buf, count, n);
+      count += n;
+      from  += n;
+    }
+  }
+
+  /** Write text[from..to) */
+  protected void put(CharSequence text, int from, int to)
+  {
+    while (from < to)
+    {
+      if (count == buf.length) flushBuffer();
+      int n = Math.min(to - from, buf.length - count);
+      if (text instanceof String)
+        ((String) text).getChars(from, from + n, buf, count);
+      else
+        for (int i = 0; i < n; i++) buf[count + i] = text.charAt(from + i);
+      count += n;
+      from  += n;
+    }
+  }
+
+  /** Write out the buffer, except (for a channel) a trailing high surrogate, whose pair is yet to come */
+  protected void flushBuffer()
+  {
+    try
+    {
+      if (writer != null)
+      {
+        writer.write(buf, 0, count);
+        count = 0;
+        return;
+      }
+      int n = count;
+      if (n > 0 && Character.isHighSurrogate(buf[n - 1])) n--;
+      bytes.clear();
+      for (int i = 0; i < n; i++)
+      {
+        int c = buf[i];
+        if (Character.isSurrogate((char) c))
+        {
+          if (Character.isHighSurrogate((char) c) && i + 1 < n && Character.isLowSurrogate(buf[i + 1]))
+          {
+            int cp = Character.toCodePoint((char) c, buf[++i]);
+            bytes.put((byte) (0xF0 | (cp >> 18)));
+            bytes.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+            bytes.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+            bytes.put((byte) (0x80 | (cp & 0x3F)));
+            continue;
+          }
+          c = '?'; // a surrogate without its pair
+        }
+        if (c < 0x80)
+          bytes.put((byte) c);
+        else if (c < 0x800)
+        {
+          bytes.put((byte) (0xC0 | (c >> 6)));
+          bytes.put((byte) (0x80 | (c & 0x3F)));
+        }
+        else
+        {
+          bytes.put((byte) (0xE0 | (c >> 12)));
+          bytes.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+          bytes.put((byte) (0x80 | (c & 0x3F)));
+        }
+      }
+      bytes.flip();
+      while (bytes.hasRemaining()) channel.write(bytes);
+      if (n < count) buf[0] = buf[n];
+      count -= n;
+    }
+    catch (IOException ex)
+    {
+      throw new UncheckedIOException(ex);
+    }
+  }
+
+  /** Write out everything written so far */
+  public void flush()
+  {
+    flushBuffer();
+    try
+    {
+      if (writer != null) writer.flush();
+    }
+    catch (IOException ex)
+    {
+      throw new UncheckedIOException(ex);
+    }
+  }
+
+  /** Flush, then close the Writer or channel */
+  public void close() throws IOException
+  {
+    flush();
+    if (count > 0)
+    { // A high surrogate held back by flushBuffer, whose pair will never come
+      buf[0] = '?';
+      flushBuffer();
+    }
+    if (writer != null) writer.close();
+    if (channel != null) channel.close();
+  }
+}